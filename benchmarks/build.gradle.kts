@@ -0,0 +1,59 @@
+plugins {
+    java
+    id("me.champeau.jmh") version "0.7.3"
+}
+
+var javaVersion = 21
+var mockBukkitVersion = "4.98.0"
+
+java {
+    toolchain.languageVersion = JavaLanguageVersion.of(javaVersion)
+}
+
+val simulation: SourceSet by sourceSets.creating
+
+repositories {
+    mavenCentral()
+    maven("https://repo.papermc.io/repository/maven-public/")
+}
+
+dependencies {
+    // MockBukkit stands in for the server, and brings the Paper API along with it.
+    jmh(project(":"))
+    jmh("org.mockbukkit.mockbukkit:mockbukkit-v1.21:${mockBukkitVersion}")
+    jmh("it.unimi.dsi:fastutil:8.5.15")
+    "simulationImplementation"(project(":"))
+    "simulationImplementation"("org.mockbukkit.mockbukkit:mockbukkit-v1.21:${mockBukkitVersion}")
+    "simulationImplementation"("it.unimi.dsi:fastutil:8.5.15")
+}
+
+tasks {
+    compileJmhJava {
+        options.release = javaVersion
+    }
+    named<JavaCompile>(simulation.compileJavaTaskName) {
+        options.release = javaVersion
+    }
+
+    // Run every scenario and fail if one regressed past the baseline. Pass -PupdateBaseline to
+    // store this run's results as the new baseline instead. Kept out of check until a baseline
+    // has been recorded, since every scenario without one fails.
+    val simulate by registering(JavaExec::class) {
+        group = "verification"
+        description = "Runs the load scenarios against the stored tick-cost baseline."
+        classpath = simulation.runtimeClasspath
+        mainClass = "com.scottlinder.sane.Simulator"
+        args(
+            file("scenarios"),
+            file("simulation-baseline.yml"),
+            layout.buildDirectory.file("simulation/results.yml").get().asFile)
+        if (providers.gradleProperty("updateBaseline").isPresent) args("--update-baseline")
+    }
+}
+
+jmh {
+    fork = 1
+    warmupIterations = 3
+    iterations = 5
+    profilers.add("gc")
+}
@@ -0,0 +1,84 @@
+package com.scottlinder.sane;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.TextComponent;
+import org.bukkit.Material;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.enchantments.Enchantment;
+import org.bukkit.entity.Villager;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.MerchantRecipe;
+import org.bukkit.inventory.meta.EnchantmentStorageMeta;
+import org.mockbukkit.mockbukkit.MockBukkit;
+import org.mockbukkit.mockbukkit.ServerMock;
+import org.mockbukkit.mockbukkit.world.WorldMock;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/// Building the message announcing a newly employed villager's trades.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CareerAnnouncerBenchmark {
+
+  private CareerAnnouncer careerAnnouncer;
+  private Villager villager;
+  private ItemStack enchantedBook;
+
+  @Setup
+  public void setUp() {
+    ServerMock server = MockBukkit.mock();
+    WorldMock world = server.addSimpleWorld("world");
+    VillagerIndex villagerIndex = new VillagerIndex();
+    careerAnnouncer =
+        new CareerAnnouncer(
+            new TaskScheduler(MockBukkit.createMockPlugin()),
+            villagerIndex,
+            new Metrics(),
+            new LoadGovernor(server.getLogger(), new YamlConfiguration()),
+            world -> true,
+            20);
+    enchantedBook = new ItemStack(Material.ENCHANTED_BOOK);
+    EnchantmentStorageMeta meta = (EnchantmentStorageMeta) enchantedBook.getItemMeta();
+    meta.addStoredEnchant(Enchantment.MENDING, 1, false);
+    enchantedBook.setItemMeta(meta);
+    ItemStack sword = new ItemStack(Material.DIAMOND_SWORD);
+    sword.addEnchantment(Enchantment.SHARPNESS, 3);
+    sword.addEnchantment(Enchantment.UNBREAKING, 2);
+    List<MerchantRecipe> recipes = new ArrayList<>();
+    for (ItemStack result : List.of(enchantedBook, sword, new ItemStack(Material.BOOKSHELF))) {
+      MerchantRecipe recipe = new MerchantRecipe(result, 12);
+      recipe.addIngredient(new ItemStack(Material.EMERALD, 8));
+      recipes.add(recipe);
+    }
+    villager = world.spawn(world.getSpawnLocation(), Villager.class);
+    villager.setProfession(Villager.Profession.LIBRARIAN);
+    villager.setRecipes(recipes);
+  }
+
+  @TearDown
+  public void tearDown() {
+    MockBukkit.unmock();
+  }
+
+  @Benchmark
+  public String describe() {
+    return CareerAnnouncer.describe(enchantedBook);
+  }
+
+  @Benchmark
+  public Component careerMessage() {
+    TextComponent.Builder component = Component.text();
+    careerAnnouncer.appendCareer(component, villager);
+    return component.build();
+  }
+}
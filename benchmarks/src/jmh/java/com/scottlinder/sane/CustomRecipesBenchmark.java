@@ -0,0 +1,89 @@
+package com.scottlinder.sane;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.bukkit.Material;
+import org.bukkit.NamespacedKey;
+import org.bukkit.Tag;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.ShapedRecipe;
+import org.mockbukkit.mockbukkit.MockBukkit;
+import org.mockbukkit.mockbukkit.ServerMock;
+import org.mockbukkit.mockbukkit.plugin.MockPlugin;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/// Setting up the custom recipes during `onEnable`, either registered or as a dynamic matcher,
+/// with and without the cached reverse table.
+///
+/// MockBukkit has no vanilla recipes, so stand-ins for the slab, stairs and wall recipes the
+/// reverse table is derived from are added first.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CustomRecipesBenchmark {
+
+  @Param({"recipes", "dynamic"})
+  public String mode;
+
+  @Param({"true", "false"})
+  public boolean cached;
+
+  private ServerMock server;
+  private MockPlugin plugin;
+
+  @Setup
+  public void setUp() {
+    server = MockBukkit.mock();
+    plugin = MockBukkit.createMockPlugin();
+    plugin.getDataFolder().mkdirs();
+  }
+
+  private void addVanillaRecipe(Material part, String suffix, String... shape) {
+    String base = part.name().substring(0, part.name().length() - suffix.length());
+    for (String candidate : List.of(base, base + "S", base + "_BLOCK", base + "_PLANKS")) {
+      Material full = Material.getMaterial(candidate);
+      if (full == null) continue;
+      ShapedRecipe recipe =
+          new ShapedRecipe(NamespacedKey.minecraft(part.getKey().getKey()), new ItemStack(part));
+      recipe.shape(shape);
+      recipe.setIngredient('A', full);
+      server.addRecipe(recipe, false);
+      return;
+    }
+  }
+
+  @Setup(Level.Invocation)
+  public void resetRecipes() {
+    server.clearRecipes();
+    for (Material slab : Tag.SLABS.getValues()) addVanillaRecipe(slab, "_SLAB", "AAA");
+    for (Material stairs : Tag.STAIRS.getValues())
+      addVanillaRecipe(stairs, "_STAIRS", "A  ", "AA ", "AAA");
+    for (Material wall : Tag.WALLS.getValues()) addVanillaRecipe(wall, "_WALL", "AAA", "AAA");
+    File cache = new File(plugin.getDataFolder(), "reverse-recipes.yml");
+    if (!cached) cache.delete();
+    else if (!cache.isFile()) new CustomRecipes(plugin).createMatcher(world -> true);
+  }
+
+  @TearDown
+  public void tearDown() {
+    MockBukkit.unmock();
+  }
+
+  @Benchmark
+  public Object enable() {
+    CustomRecipes customRecipes = new CustomRecipes(plugin);
+    if (mode.equals("dynamic")) return customRecipes.createMatcher(world -> true);
+    customRecipes.register();
+    return customRecipes;
+  }
+}
@@ -0,0 +1,80 @@
+package com.scottlinder.sane;
+
+import java.util.concurrent.TimeUnit;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.entity.Zombie;
+import org.bukkit.event.entity.EntityTargetEvent;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.PluginManager;
+import org.mockbukkit.mockbukkit.MockBukkit;
+import org.mockbukkit.mockbukkit.ServerMock;
+import org.mockbukkit.mockbukkit.entity.PlayerMock;
+import org.mockbukkit.mockbukkit.world.WorldMock;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/// The checks run every time a mob picks a target, for each pacifier mode.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PacifierBenchmark {
+
+  @Param({"NONE", "COOLDOWN", "COMPLETE"})
+  public String mode;
+
+  private PluginManager pluginManager;
+  private Pacifier pacifier;
+  private PlayerMock player;
+  private EntityTargetEvent targetEvent;
+
+  @Setup
+  public void setUp() {
+    ServerMock server = MockBukkit.mock();
+    WorldMock world = server.addSimpleWorld("world");
+    Plugin plugin = MockBukkit.createMockPlugin();
+    pluginManager = server.getPluginManager();
+    pluginManager.addPermission(Pacifier.PACIFIER_COMPLETE);
+    pluginManager.addPermission(Pacifier.PACIFIER_COOLDOWN);
+    player = server.addPlayer();
+    switch (Pacifier.Mode.valueOf(mode)) {
+      case COMPLETE -> player.addAttachment(plugin, Pacifier.PACIFIER_COMPLETE.getName(), true);
+      case COOLDOWN -> player.addAttachment(plugin, Pacifier.PACIFIER_COOLDOWN.getName(), true);
+      case NONE -> {}
+    }
+    pacifier =
+        new Pacifier(
+            plugin,
+            new TaskScheduler(plugin),
+            new Metrics(),
+            world -> true,
+            new YamlConfiguration());
+    pluginManager.registerEvents(pacifier, plugin);
+    Zombie zombie = world.spawn(player.getLocation(), Zombie.class);
+    targetEvent =
+        new EntityTargetEvent(zombie, player, EntityTargetEvent.TargetReason.CLOSEST_PLAYER);
+  }
+
+  @TearDown
+  public void tearDown() {
+    MockBukkit.unmock();
+  }
+
+  @Benchmark
+  public boolean canMobsAttack() {
+    return pacifier.canMobsAttack(player);
+  }
+
+  @Benchmark
+  public boolean dispatchTargetEvent() {
+    targetEvent.setCancelled(false);
+    pluginManager.callEvent(targetEvent);
+    return targetEvent.isCancelled();
+  }
+}
@@ -0,0 +1,112 @@
+package com.scottlinder.sane;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.entity.Villager;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.MerchantRecipe;
+import org.mockbukkit.mockbukkit.MockBukkit;
+import org.mockbukkit.mockbukkit.ServerMock;
+import org.mockbukkit.mockbukkit.world.WorldMock;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/// Collecting a town's recipes when its bell is rung, and building its offers from them, for towns
+/// of various sizes.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TradingPostBenchmark {
+
+  private static final Material[] RESULTS = {
+    Material.BREAD, Material.ARROW, Material.BOOK, Material.IRON_SWORD, Material.GLASS
+  };
+
+  @Param({"10", "100", "1000"})
+  public int villagers;
+
+  @Param({"false", "true"})
+  public boolean deduplicate;
+
+  private ExecutorService workers;
+  private TradingPost tradingPost;
+  private Location bell;
+
+  @Setup
+  public void setUp() {
+    ServerMock server = MockBukkit.mock();
+    WorldMock world = server.addSimpleWorld("world");
+    workers = Executors.newVirtualThreadPerTaskExecutor();
+    VillagerIndex villagerIndex = new VillagerIndex();
+    bell = new Location(world, 0, 64, 0);
+    Random random = new Random(0);
+    for (int i = 0; i < villagers; i++) {
+      Location location =
+          bell.clone()
+              .add(
+                  random.nextInt(-Sane.TOWN_DIM_X, Sane.TOWN_DIM_X),
+                  0,
+                  random.nextInt(-Sane.TOWN_DIM_Z, Sane.TOWN_DIM_Z));
+      Villager villager = world.spawn(location, Villager.class);
+      villager.setProfession(Villager.Profession.FARMER);
+      villager.setRecipes(getRecipes(random));
+      villagerIndex.add(villager);
+    }
+    YamlConfiguration config = new YamlConfiguration();
+    config.set("deduplicate-offers", deduplicate);
+    tradingPost =
+        new TradingPost(
+            new TaskScheduler(MockBukkit.createMockPlugin()),
+            workers,
+            server.getLogger(),
+            villagerIndex,
+            new Metrics(),
+            new LoadGovernor(server.getLogger(), new YamlConfiguration()),
+            world -> true,
+            null,
+            config);
+  }
+
+  private static List<MerchantRecipe> getRecipes(Random random) {
+    return random
+        .ints(2, 0, RESULTS.length)
+        .mapToObj(
+            i -> {
+              MerchantRecipe recipe = new MerchantRecipe(new ItemStack(RESULTS[i]), 12);
+              recipe.addIngredient(new ItemStack(Material.EMERALD, 1 + i));
+              return recipe;
+            })
+        .toList();
+  }
+
+  @TearDown
+  public void tearDown() {
+    workers.shutdownNow();
+    MockBukkit.unmock();
+  }
+
+  @Benchmark
+  public List<MerchantRecipe> getTownRecipes() {
+    return tradingPost.getTownRecipes(bell).join();
+  }
+
+  /// Everything a bell click costs short of opening the view, with the snapshot bypassed: the
+  /// collection above plus the copying, and deduplicating if enabled, on a worker thread.
+  @Benchmark
+  public List<MerchantRecipe> buildTownOffers() {
+    return tradingPost.buildTownOffers(bell).join();
+  }
+}
@@ -0,0 +1,53 @@
+package com.scottlinder.sane;
+
+import java.io.File;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+/// One load scenario for the {@link Simulator}, read from a YAML file named after it.
+///
+/// Rates are per tick and may be fractional, e.g. a `bell-clicks` of 0.25 rings a bell every
+/// fourth tick on average. Tolerances are fractions of the baseline: `allocation` and `counts`
+/// fail the run when exceeded, while `time`, being at the mercy of the machine, only warns.
+record Scenario(
+    String name,
+    int ticks,
+    int warmupTicks,
+    int villages,
+    int villagersPerVillage,
+    int villageSpacing,
+    int mobs,
+    int players,
+    int pacifiedComplete,
+    int pacifiedCooldown,
+    double bellClicks,
+    double bribes,
+    double workstationResets,
+    double mobRetargets,
+    double attacks,
+    double timeTolerance,
+    double allocationTolerance,
+    double countTolerance) {
+
+  static Scenario load(File file) {
+    YamlConfiguration config = YamlConfiguration.loadConfiguration(file);
+    return new Scenario(
+        file.getName().replaceFirst("\\.yml$", ""),
+        config.getInt("ticks", 600),
+        config.getInt("warmup-ticks", 200),
+        config.getInt("villages", 1),
+        config.getInt("villagers-per-village", 50),
+        config.getInt("village-spacing", 100),
+        config.getInt("mobs", 0),
+        config.getInt("players", 1),
+        config.getInt("pacified-complete", 0),
+        config.getInt("pacified-cooldown", 0),
+        config.getDouble("per-tick.bell-clicks"),
+        config.getDouble("per-tick.bribes"),
+        config.getDouble("per-tick.workstation-resets"),
+        config.getDouble("per-tick.mob-retargets"),
+        config.getDouble("per-tick.attacks"),
+        config.getDouble("tolerance.time", 0.25),
+        config.getDouble("tolerance.allocation", 0.10),
+        config.getDouble("tolerance.counts", 0.05));
+  }
+}
@@ -0,0 +1,324 @@
+package com.scottlinder.sane;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.entity.Mob;
+import org.bukkit.entity.Villager;
+import org.bukkit.entity.Zombie;
+import org.bukkit.event.block.Action;
+import org.bukkit.event.entity.EntityTargetEvent;
+import org.bukkit.event.player.PlayerInteractEntityEvent;
+import org.bukkit.event.player.PlayerInteractEvent;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.MerchantRecipe;
+import org.bukkit.plugin.Plugin;
+import org.mockbukkit.mockbukkit.MockBukkit;
+import org.mockbukkit.mockbukkit.ServerMock;
+import org.mockbukkit.mockbukkit.entity.PlayerMock;
+import org.mockbukkit.mockbukkit.world.WorldMock;
+
+/// Runs the plugin on a MockBukkit server through every load scenario, measuring the time and
+/// allocation each feature adds to a tick, and fails if any regressed past the stored baseline.
+///
+/// The gate is on what does not depend on the machine: allocation per tick and the plugin's own
+/// counts of handler runs, villagers scanned and recipes built, which change in either direction
+/// only when behavior does. Time per tick is compared too, but only warned about. A scenario
+/// missing from the baseline fails, so that a new one cannot slip in ungated.
+///
+/// Each tick, the scripted player and mob actions are fired as events, one phase per feature,
+/// and then the scheduler is ticked once. Time and allocation are measured on the ticking thread
+/// around each phase. Work the plugin hands to its worker threads is reported separately, from
+/// the plugin's own metrics.
+///
+/// Usage: `Simulator <scenario dir> <baseline file> <results file> [--update-baseline]`
+public final class Simulator {
+
+  /// A slice of each tick attributed to one feature.
+  private enum Phase {
+    BELL_CLICKS,
+    BRIBES,
+    WORKSTATION_RESETS,
+    MOB_TARGETING,
+    COMBAT,
+    SCHEDULED;
+
+    String key() {
+      return name().toLowerCase(Locale.ROOT).replace('_', '-');
+    }
+  }
+
+  private static final Material[] RESULTS = {
+    Material.BREAD, Material.ARROW, Material.BOOK, Material.IRON_SWORD, Material.GLASS
+  };
+
+  private static final com.sun.management.ThreadMXBean THREADS =
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+  private final Scenario scenario;
+  private final Random random = new Random(0);
+  private final Map<Phase, LatencyHistogram> tickNanos = new EnumMap<>(Phase.class);
+  private final Map<Phase, Long> tickBytes = new EnumMap<>(Phase.class);
+  private final List<Block> bells = new ArrayList<>();
+  private final List<Block> workstations = new ArrayList<>();
+  private final List<Villager> villagers = new ArrayList<>();
+  private final List<Mob> mobs = new ArrayList<>();
+  private final List<PlayerMock> players = new ArrayList<>();
+  private ServerMock server;
+
+  private Simulator(Scenario scenario) {
+    this.scenario = scenario;
+    for (Phase phase : Phase.values()) {
+      tickNanos.put(phase, new LatencyHistogram());
+      tickBytes.put(phase, 0L);
+    }
+  }
+
+  private static List<MerchantRecipe> getRecipes(Random random) {
+    return random
+        .ints(3, 0, RESULTS.length)
+        .mapToObj(
+            i -> {
+              MerchantRecipe recipe = new MerchantRecipe(new ItemStack(RESULTS[i]), 12);
+              recipe.addIngredient(new ItemStack(Material.EMERALD, 1 + i));
+              return recipe;
+            })
+        .toList();
+  }
+
+  private Location around(Location center, int radius) {
+    return center
+        .clone()
+        .add(random.nextInt(-radius, radius + 1), 0, random.nextInt(-radius, radius + 1));
+  }
+
+  private <T> T pick(List<T> list) {
+    return list.get(random.nextInt(list.size()));
+  }
+
+  /// How many times something happening `rate` times per tick on average happens this tick.
+  private int times(double rate) {
+    int times = (int) rate;
+    if (random.nextDouble() < rate - times) times++;
+    return times;
+  }
+
+  /// Build the world before enabling the plugin, so its villager index picks everything up.
+  private void populate(WorldMock world) {
+    Plugin permissions = MockBukkit.createMockPlugin();
+    for (int v = 0; v < scenario.villages(); v++) {
+      Location center = new Location(world, v * scenario.villageSpacing(), 64, 0);
+      Block bell = world.getBlockAt(center);
+      bell.setType(Material.BELL);
+      bells.add(bell);
+      Block lectern = world.getBlockAt(center.clone().add(2, 0, 0));
+      lectern.setType(Material.LECTERN);
+      workstations.add(lectern);
+      for (int i = 0; i < scenario.villagersPerVillage(); i++) {
+        Villager villager = world.spawn(around(center, 48), Villager.class);
+        villager.setProfession(Villager.Profession.LIBRARIAN);
+        villager.setRecipes(getRecipes(random));
+        villager.setVillagerLevel(3);
+        villagers.add(villager);
+      }
+    }
+    Location origin = new Location(world, 0, 64, 0);
+    int spread = scenario.villageSpacing() * scenario.villages();
+    for (int i = 0; i < scenario.mobs(); i++)
+      mobs.add(world.spawn(around(origin, spread), Zombie.class));
+    for (int i = 0; i < scenario.players(); i++) {
+      PlayerMock player = server.addPlayer();
+      player.teleport(around(origin, spread));
+      player.setSneaking(true);
+      if (i < scenario.pacifiedComplete())
+        player.addAttachment(permissions, Pacifier.PACIFIER_COMPLETE.getName(), true);
+      else if (i < scenario.pacifiedComplete() + scenario.pacifiedCooldown())
+        player.addAttachment(permissions, Pacifier.PACIFIER_COOLDOWN.getName(), true);
+      players.add(player);
+    }
+  }
+
+  private void clickBlock(Block block) {
+    PlayerMock player = pick(players);
+    // Empty-handed, since ringing a bell with emeralds asks for a town refresh instead.
+    player.getInventory().setItemInMainHand(null);
+    PlayerInteractEvent event =
+        new PlayerInteractEvent(player, Action.RIGHT_CLICK_BLOCK, null, block, BlockFace.UP);
+    server.getPluginManager().callEvent(event);
+  }
+
+  private void bribe() {
+    PlayerMock player = pick(players);
+    player.getInventory().setItemInMainHand(new ItemStack(Material.EMERALD, 64));
+    server.getPluginManager().callEvent(new PlayerInteractEntityEvent(player, pick(villagers)));
+  }
+
+  private void retarget() {
+    Mob mob = pick(mobs);
+    PlayerMock player = pick(players);
+    EntityTargetEvent event =
+        new EntityTargetEvent(mob, player, EntityTargetEvent.TargetReason.CLOSEST_PLAYER);
+    server.getPluginManager().callEvent(event);
+    if (!event.isCancelled()) mob.setTarget(player);
+  }
+
+  private void attack() {
+    Mob mob = pick(mobs);
+    PlayerMock player = pick(players);
+    mob.damage(1, player);
+    mob.setHealth(mob.getMaxHealth());
+    player.damage(1, mob);
+    player.setHealth(player.getMaxHealth());
+  }
+
+  private void measure(Phase phase, int times, Runnable action, boolean record) {
+    long bytes = THREADS.getCurrentThreadAllocatedBytes();
+    long start = System.nanoTime();
+    for (int i = 0; i < times; i++) action.run();
+    long nanos = System.nanoTime() - start;
+    if (!record) return;
+    tickNanos.get(phase).record(nanos);
+    tickBytes.merge(phase, THREADS.getCurrentThreadAllocatedBytes() - bytes, Long::sum);
+  }
+
+  private void tick(boolean record) {
+    measure(Phase.BELL_CLICKS, times(scenario.bellClicks()), () -> clickBlock(pick(bells)), record);
+    measure(Phase.BRIBES, times(scenario.bribes()), this::bribe, record);
+    measure(
+        Phase.WORKSTATION_RESETS,
+        times(scenario.workstationResets()),
+        () -> clickBlock(pick(workstations)),
+        record);
+    measure(Phase.MOB_TARGETING, times(scenario.mobRetargets()), this::retarget, record);
+    measure(Phase.COMBAT, times(scenario.attacks()), this::attack, record);
+    measure(Phase.SCHEDULED, 1, () -> server.getScheduler().performOneTick(), record);
+  }
+
+  private void run(ConfigurationSection result) {
+    server = MockBukkit.mock();
+    try {
+      populate(server.addSimpleWorld("world"));
+      Sane plugin = MockBukkit.load(Sane.class);
+      for (int i = 0; i < scenario.warmupTicks(); i++) tick(false);
+      plugin.getMetrics().reset();
+      for (int i = 0; i < scenario.ticks(); i++) tick(true);
+      for (Phase phase : Phase.values()) {
+        LatencyHistogram histogram = tickNanos.get(phase);
+        ConfigurationSection section = result.createSection("phases." + phase.key());
+        section.set("mean-nanos-per-tick", histogram.getTotal() / scenario.ticks());
+        section.set("p99-nanos-per-tick", histogram.getValueAtPercentile(99));
+        section.set("max-nanos-per-tick", histogram.getMax());
+        section.set("bytes-per-tick", tickBytes.get(phase) / scenario.ticks());
+      }
+      Metrics metrics = plugin.getMetrics();
+      for (Metrics.Timer timer : Metrics.Timer.values()) {
+        LatencyHistogram histogram = metrics.get(timer);
+        ConfigurationSection section = result.createSection("plugin." + timer.key());
+        section.set("count", histogram.getCount());
+        section.set("mean-nanos-per-tick", histogram.getTotal() / scenario.ticks());
+        section.set("p99-nanos", histogram.getValueAtPercentile(99));
+      }
+      for (Metrics.Counter counter : Metrics.Counter.values())
+        result.set("plugin." + counter.key(), metrics.get(counter));
+    } finally {
+      MockBukkit.unmock();
+    }
+  }
+
+  /// Compare a count with its baseline, which it may not stray from by more than the tolerance in
+  /// either direction.
+  private static void compareCount(
+      Scenario scenario,
+      ConfigurationSection baseline,
+      ConfigurationSection result,
+      String path,
+      List<String> regressions) {
+    long count = result.getLong(path);
+    if (!baseline.contains(path)) {
+      regressions.add("%s: %s has no baseline".formatted(scenario.name(), path));
+      return;
+    }
+    long baseCount = baseline.getLong(path);
+    if (Math.abs(count - baseCount) > baseCount * scenario.countTolerance())
+      regressions.add(
+          "%s: %s is %d, baseline %d".formatted(scenario.name(), path, count, baseCount));
+  }
+
+  private static List<String> compare(
+      Scenario scenario, ConfigurationSection baseline, ConfigurationSection result) {
+    List<String> regressions = new ArrayList<>();
+    if (baseline == null) {
+      regressions.add(
+          "%s: no baseline, record one with -PupdateBaseline".formatted(scenario.name()));
+      return regressions;
+    }
+    for (Phase phase : Phase.values()) {
+      String path = "phases." + phase.key();
+      long bytes = result.getLong(path + ".bytes-per-tick");
+      long baseBytes = baseline.getLong(path + ".bytes-per-tick");
+      if (bytes > baseBytes * (1 + scenario.allocationTolerance()))
+        regressions.add(
+            "%s: %s allocates %d bytes per tick, baseline %d"
+                .formatted(scenario.name(), phase.key(), bytes, baseBytes));
+      long nanos = result.getLong(path + ".mean-nanos-per-tick");
+      long baseNanos = baseline.getLong(path + ".mean-nanos-per-tick");
+      if (nanos > baseNanos * (1 + scenario.timeTolerance()))
+        System.out.printf(
+            "warning: %s: %s takes %dns per tick, baseline %dns%n",
+            scenario.name(), phase.key(), nanos, baseNanos);
+    }
+    for (Metrics.Timer timer : Metrics.Timer.values())
+      compareCount(scenario, baseline, result, "plugin." + timer.key() + ".count", regressions);
+    for (Metrics.Counter counter : Metrics.Counter.values())
+      compareCount(scenario, baseline, result, "plugin." + counter.key(), regressions);
+    return regressions;
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 3) {
+      System.err.println(
+          "Usage: Simulator <scenario dir> <baseline file> <results file> [--update-baseline]");
+      System.exit(2);
+    }
+    File[] files = new File(args[0]).listFiles((dir, name) -> name.endsWith(".yml"));
+    if (files == null) throw new IOException("No scenarios in " + args[0]);
+    Arrays.sort(files);
+    File baselineFile = new File(args[1]);
+    File resultsFile = new File(args[2]);
+    boolean updateBaseline = args.length > 3 && args[3].equals("--update-baseline");
+    YamlConfiguration baseline = YamlConfiguration.loadConfiguration(baselineFile);
+    YamlConfiguration results = new YamlConfiguration();
+    List<String> regressions = new ArrayList<>();
+    for (File file : files) {
+      Scenario scenario = Scenario.load(file);
+      System.out.printf("%s: %d ticks%n", scenario.name(), scenario.ticks());
+      ConfigurationSection result = results.createSection(scenario.name());
+      new Simulator(scenario).run(result);
+      regressions.addAll(
+          compare(scenario, baseline.getConfigurationSection(scenario.name()), result));
+    }
+    results.save(resultsFile);
+    System.out.println("Results written to " + resultsFile);
+    if (updateBaseline) {
+      results.save(baselineFile);
+      System.out.println("Baseline updated");
+      return;
+    }
+    if (regressions.isEmpty()) return;
+    regressions.forEach(System.err::println);
+    System.exit(1);
+  }
+}
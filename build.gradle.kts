@@ -19,8 +19,15 @@ java {
     toolchain.languageVersion = JavaLanguageVersion.of(javaVersion)
 }
 
+repositories {
+    mavenCentral()
+}
+
 dependencies {
     paperweight.paperDevBundle("${paperVersion}-R0.1-SNAPSHOT")
+    testImplementation(platform("org.junit:junit-bom:5.13.4"))
+    testImplementation("org.junit.jupiter:junit-jupiter")
+    testRuntimeOnly("org.junit.platform:junit-platform-launcher")
 }
 
 tasks {
@@ -28,6 +35,9 @@ tasks {
         options.compilerArgs.addAll(arrayOf("-Xlint:all", "-Xlint:-processing", "-Xdiags:verbose"))
         options.release = javaVersion
     }
+    test {
+        useJUnitPlatform()
+    }
 }
 
 bukkitPluginYaml {
@@ -35,6 +45,11 @@ bukkitPluginYaml {
   load = BukkitPluginYaml.PluginLoadOrder.STARTUP
   authors.add("Authors")
   apiVersion = paperVersion
+  foliaSupported = true
+  commands.register("sane") {
+    description = "Sane administration"
+    usage = "/sane <find <item|enchantment> [level] [open]|refresh|reload|stats [reset]>"
+  }
 }
 
 spotless {
@@ -10,3 +10,5 @@ plugins {
 }
 
 rootProject.name = "sane"
+
+include("benchmarks")
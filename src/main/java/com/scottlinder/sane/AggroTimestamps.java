@@ -0,0 +1,58 @@
+package com.scottlinder.sane;
+
+import it.unimi.dsi.fastutil.objects.Object2LongOpenHashMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.locks.StampedLock;
+
+/// The tick on which each cooldown-pacified player last damaged a hostile mob, keyed by player
+/// UUID and stored unboxed. Safe to use from any thread.
+final class AggroTimestamps {
+
+  /// Returned by {@link #get(UUID)} for players with no recorded damage.
+  static final long NONE = Long.MIN_VALUE;
+
+  private final Object2LongOpenHashMap<UUID> ticks = new Object2LongOpenHashMap<>();
+  private final StampedLock lock = new StampedLock();
+
+  AggroTimestamps() {
+    ticks.defaultReturnValue(NONE);
+  }
+
+  long get(UUID player) {
+    long stamp = lock.readLock();
+    try {
+      return ticks.getLong(player);
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
+  void put(UUID player, long tick) {
+    long stamp = lock.writeLock();
+    try {
+      ticks.put(player, tick);
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  void remove(UUID player) {
+    long stamp = lock.writeLock();
+    try {
+      ticks.removeLong(player);
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  List<UUID> players() {
+    long stamp = lock.readLock();
+    try {
+      return new ArrayList<>(ticks.keySet());
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+}
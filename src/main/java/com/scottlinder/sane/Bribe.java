@@ -0,0 +1,111 @@
+package com.scottlinder.sane;
+
+import java.text.MessageFormat;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import net.kyori.adventure.text.Component;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.entity.Player;
+import org.bukkit.entity.Villager;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.block.Action;
+import org.bukkit.event.player.PlayerInteractEntityEvent;
+import org.bukkit.event.player.PlayerInteractEvent;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.PlayerInventory;
+
+/// Sneak-clicking a villager with emeralds in hand bribes it into rerolling its trades above
+/// level 1. Sneak-ringing a bell with them asks [BulkRefresh] to do the whole town at once, ahead
+/// of the Trading Post the bell would otherwise open.
+final class Bribe implements Listener {
+
+  private static final String ERROR_LEVEL_ONE =
+      "You cannot bribe a villager into refreshing their level-1 trades!";
+  private static final String ERROR_MUST_HOLD =
+      "You must be holding {0} to bribe this villager into refreshing their non-level-1"
+          + " trades!";
+  private static final String ERROR_NOT_ENOUGH =
+      "You must have {0} {1} to bribe this villager into refreshing their non-level-1" + " trades!";
+  private static final String SUCCESS_YOU_SPENT =
+      "The villager accepted your bribe of {0} {1} and refreshed their non-level-1 trades!";
+
+  private final Predicate<World> enabledIn;
+  private final Metrics metrics;
+  private final LoadGovernor loadGovernor;
+  private final BulkRefresh bulkRefresh;
+  private final Consumer<Villager> refresher;
+
+  Bribe(
+      Predicate<World> enabledIn,
+      Metrics metrics,
+      LoadGovernor loadGovernor,
+      BulkRefresh bulkRefresh,
+      Consumer<Villager> refresher) {
+    this.enabledIn = enabledIn;
+    this.metrics = metrics;
+    this.loadGovernor = loadGovernor;
+    this.bulkRefresh = bulkRefresh;
+    this.refresher = refresher;
+  }
+
+  // Runs before the Trading Post, which leaves alone any click this has cancelled.
+  @EventHandler(priority = EventPriority.LOW)
+  public void onPlayerInteract(PlayerInteractEvent event) {
+    if (event.getAction() != Action.RIGHT_CLICK_BLOCK) return;
+    Player player = event.getPlayer();
+    Block block = event.getClickedBlock();
+    if (!player.isSneaking() || block == null || block.getType() != Material.BELL) return;
+    if (player.getInventory().getItemInMainHand().getType() != Sane.TRADE_REFRESH_MATERIAL
+        || !player.hasPermission(SaneCommand.REFRESH)
+        || !enabledIn.test(block.getWorld())) return;
+    long start = System.nanoTime();
+    try {
+      if (loadGovernor.tryClick(player)) bulkRefresh.request(player, block.getLocation());
+      event.setCancelled(true);
+    } finally {
+      metrics.record(Metrics.Timer.BULK_REFRESH_CLICK, start);
+    }
+  }
+
+  @EventHandler
+  public void onPlayerInteractEntity(PlayerInteractEntityEvent event) {
+    Player player = event.getPlayer();
+    if (!player.isSneaking() || !(event.getRightClicked() instanceof Villager villager)) return;
+    if (!enabledIn.test(villager.getWorld())) return;
+    long start = System.nanoTime();
+    try {
+      PlayerInventory inventory = player.getInventory();
+      int level = villager.getVillagerLevel();
+      if (level == 1) {
+        player.sendMessage(Component.text(ERROR_LEVEL_ONE));
+        event.setCancelled(true);
+        return;
+      }
+      Material material = Sane.TRADE_REFRESH_MATERIAL;
+      if (inventory.getItemInMainHand().getType() != material) {
+        player.sendMessage(Component.text(MessageFormat.format(ERROR_MUST_HOLD, material.name())));
+        event.setCancelled(true);
+        return;
+      }
+      int tradeRefreshAmount = Sane.getRefreshCost(level);
+      if (!inventory.contains(material, tradeRefreshAmount)) {
+        player.sendMessage(
+            Component.text(
+                MessageFormat.format(ERROR_NOT_ENOUGH, tradeRefreshAmount, material.name())));
+        event.setCancelled(true);
+        return;
+      }
+      player.sendMessage(
+          Component.text(
+              MessageFormat.format(SUCCESS_YOU_SPENT, tradeRefreshAmount, material.name())));
+      inventory.removeItemAnySlot(new ItemStack(material, tradeRefreshAmount));
+      refresher.accept(villager);
+    } finally {
+      metrics.record(Metrics.Timer.BRIBE_CLICK, start);
+    }
+  }
+}
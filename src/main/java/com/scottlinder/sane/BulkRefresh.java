@@ -0,0 +1,308 @@
+package com.scottlinder.sane;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.format.NamedTextColor;
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.entity.Player;
+import org.bukkit.entity.Villager;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.PlayerInventory;
+
+/// Refreshes the trades of every villager in town at once, for the sum of their bribes.
+///
+/// The first request quotes the price; repeating it within `confirm-seconds` from about the same
+/// spot pays and queues the villagers. The queue is then worked through on the town's thread for
+/// at most `millis-per-tick` each tick, with progress shown on the player's action bar. Each
+/// villager is checked and refreshed on its own thread; villagers that unload or drop to level 1
+/// before their turn are skipped, and their share refunded at the end.
+///
+/// A refund owed to a player who has gone offline is paid when they next join. Refunds still owed
+/// on shutdown, including the share of villagers a running refresh had not got to, are kept in
+/// `refunds.yml` until the next startup.
+final class BulkRefresh implements Listener {
+
+  static final String REFUNDS_FILE = "refunds.yml";
+
+  /// How far a confirmation may be from the quoted spot and still count as the same town.
+  private static final double CONFIRM_DISTANCE = 16;
+
+  private record Quote(Location center, int cost, long expiresNanos) {}
+
+  private record Queued(Villager villager, int cost) {}
+
+  /// A refresh in progress. The queue is only touched on the town's thread, while the counts are
+  /// updated from each villager's.
+  private static final class Job {
+    final UUID player;
+    final Location center;
+    final Queue<Queued> queue;
+    final int total;
+    final AtomicInteger unsettled;
+    final AtomicInteger unsettledCost;
+    final AtomicInteger refreshed = new AtomicInteger();
+    final AtomicInteger refund = new AtomicInteger();
+
+    Job(UUID player, Location center, Queue<Queued> queue) {
+      this.player = player;
+      this.center = center;
+      this.queue = queue;
+      this.total = queue.size();
+      this.unsettled = new AtomicInteger(total);
+      this.unsettledCost = new AtomicInteger(getCost(queue));
+    }
+  }
+
+  private final TaskScheduler scheduler;
+  private final VillagerIndex villagerIndex;
+  private final Metrics metrics;
+  private final Consumer<Villager> refresher;
+  private final File refundsFile;
+  private final Logger logger;
+  private final long budgetNanos;
+  private final long confirmNanos;
+  private final Map<UUID, Quote> quotes = new ConcurrentHashMap<>();
+  private final Map<UUID, Job> running = new ConcurrentHashMap<>();
+
+  /// Refunds owed to players who were offline when their refresh finished.
+  private final Map<UUID, Integer> refunds = new ConcurrentHashMap<>();
+
+  BulkRefresh(
+      TaskScheduler scheduler,
+      VillagerIndex villagerIndex,
+      Metrics metrics,
+      Consumer<Villager> refresher,
+      File dataFolder,
+      Logger logger,
+      ConfigurationSection config) {
+    this.scheduler = scheduler;
+    this.villagerIndex = villagerIndex;
+    this.metrics = metrics;
+    this.refresher = refresher;
+    this.refundsFile = new File(dataFolder, REFUNDS_FILE);
+    this.logger = logger;
+    this.budgetNanos = (long) (Math.max(0.1, config.getDouble("millis-per-tick")) * 1_000_000);
+    this.confirmNanos = Math.max(1, config.getLong("confirm-seconds")) * 1_000_000_000;
+    YamlConfiguration stored = YamlConfiguration.loadConfiguration(refundsFile);
+    for (String key : stored.getKeys(false)) {
+      try {
+        owe(UUID.fromString(key), stored.getInt(key));
+      } catch (IllegalArgumentException e) {
+        logger.warning("Ignoring refund for malformed player ID " + key + " in " + REFUNDS_FILE);
+      }
+    }
+    // The refunds live in memory until shutdown, and must not be paid twice after a crash.
+    if (refundsFile.exists() && !refundsFile.delete())
+      logger.warning("Failed to delete " + REFUNDS_FILE + " after loading it");
+  }
+
+  /// The villagers in town above level 1, each with its level read on its own thread.
+  private CompletableFuture<Queue<Queued>> getTownQueue(Location center) {
+    List<CompletableFuture<Queued>> reads = new ArrayList<>();
+    for (Villager villager :
+        villagerIndex.getNearbyVillagers(
+            center, Sane.TOWN_DIM_X, Sane.TOWN_DIM_Y, Sane.TOWN_DIM_Z)) {
+      reads.add(
+          scheduler.supply(
+              villager,
+              () -> {
+                int level = villager.isValid() ? villager.getVillagerLevel() : 0;
+                return level > 1 ? new Queued(villager, Sane.getRefreshCost(level)) : null;
+              },
+              null));
+    }
+    return TaskScheduler.allOf(reads).thenApply(ArrayDeque::new);
+  }
+
+  private static int getCost(Queue<Queued> queue) {
+    int cost = 0;
+    for (Queued queued : queue) cost += queued.cost();
+    return cost;
+  }
+
+  private static String describeCost(int cost) {
+    return "%d %s".formatted(cost, Sane.cleanKey(Sane.TRADE_REFRESH_MATERIAL.getKey()));
+  }
+
+  private static void sendStillRunning(Player player) {
+    player.sendMessage(
+        Component.text("Your town trade refresh is still running.", NamedTextColor.RED));
+  }
+
+  /// Quote, or on a repeat within the confirmation window start, a refresh of the town around
+  /// `center` for `player`. Must run on the player's thread; the answer comes once the town's
+  /// villagers have been looked at, back on the player's thread.
+  void request(Player player, Location center) {
+    if (running.containsKey(player.getUniqueId())) {
+      sendStillRunning(player);
+      return;
+    }
+    getTownQueue(center)
+        .thenAccept(queue -> scheduler.execute(player, () -> request(player, center, queue)));
+  }
+
+  private void request(Player player, Location center, Queue<Queued> queue) {
+    if (!player.isOnline()) return;
+    UUID playerId = player.getUniqueId();
+    long now = System.nanoTime();
+    Quote quote = quotes.remove(playerId);
+    int cost = getCost(queue);
+    if (queue.isEmpty()) {
+      player.sendMessage(
+          Component.text("No villager in town has trades to refresh.", NamedTextColor.RED));
+      return;
+    }
+    boolean confirmed =
+        quote != null
+            && now < quote.expiresNanos()
+            && quote.center().getWorld() == center.getWorld()
+            && quote.center().distanceSquared(center) <= CONFIRM_DISTANCE * CONFIRM_DISTANCE
+            && cost <= quote.cost();
+    if (!confirmed) {
+      quotes.put(playerId, new Quote(center, cost, now + confirmNanos));
+      player.sendMessage(
+          Component.text(
+              "Refreshing the trades of %d villagers in town costs %s. Repeat within %d seconds"
+                      .formatted(queue.size(), describeCost(cost), confirmNanos / 1_000_000_000)
+                  + " to pay.",
+              NamedTextColor.YELLOW));
+      return;
+    }
+    PlayerInventory inventory = player.getInventory();
+    if (!inventory.contains(Sane.TRADE_REFRESH_MATERIAL, cost)) {
+      player.sendMessage(
+          Component.text("You need " + describeCost(cost) + " for this.", NamedTextColor.RED));
+      return;
+    }
+    Job job = new Job(playerId, center, queue);
+    if (running.putIfAbsent(playerId, job) != null) {
+      sendStillRunning(player);
+      return;
+    }
+    inventory.removeItemAnySlot(new ItemStack(Sane.TRADE_REFRESH_MATERIAL, cost));
+    player.sendMessage(
+        Component.text(
+            "Paid %s, refreshing %d villagers.".formatted(describeCost(cost), queue.size()),
+            NamedTextColor.GREEN));
+    scheduler.runAt(center, () -> process(job));
+  }
+
+  private void process(Job job) {
+    long start = System.nanoTime();
+    long deadline = start + budgetNanos;
+    do {
+      Queued queued = job.queue.poll();
+      if (queued == null) break;
+      scheduler.execute(
+          queued.villager(), () -> refresh(job, queued), () -> settle(job, queued, false));
+    } while (System.nanoTime() < deadline);
+    metrics.record(Metrics.Timer.BULK_REFRESH, start);
+    if (job.queue.isEmpty()) return;
+    Player player = Bukkit.getPlayer(job.player);
+    if (player != null) {
+      int done = job.total - job.queue.size();
+      player.sendActionBar(
+          Component.text(
+              "Refreshing town trades: %d/%d".formatted(done, job.total), NamedTextColor.GREEN));
+    }
+    scheduler.runAtLater(job.center, () -> process(job), 1L);
+  }
+
+  /// Refresh the villager of `queued` if it is still there and above level 1. Must run on the
+  /// villager's thread.
+  private void refresh(Job job, Queued queued) {
+    Villager villager = queued.villager();
+    boolean refreshed = villager.isValid() && villager.getVillagerLevel() > 1;
+    if (refreshed) refresher.accept(villager);
+    settle(job, queued, refreshed);
+  }
+
+  /// Count `queued` as done, refunding its share unless it was `refreshed`, and wrap the job up
+  /// once it was the last.
+  private void settle(Job job, Queued queued, boolean refreshed) {
+    if (refreshed) job.refreshed.incrementAndGet();
+    else job.refund.addAndGet(queued.cost());
+    job.unsettledCost.addAndGet(-queued.cost());
+    if (job.unsettled.decrementAndGet() > 0) return;
+    running.remove(job.player);
+    Player player = Bukkit.getPlayer(job.player);
+    if (player == null) owe(job.player, job.refund.get());
+    else
+      scheduler.runAt(
+          player,
+          () -> finish(player, job.refreshed.get(), job.refund.get()),
+          () -> owe(job.player, job.refund.get()));
+  }
+
+  private void owe(UUID player, int amount) {
+    if (amount > 0) refunds.merge(player, amount, Integer::sum);
+  }
+
+  private void finish(Player player, int refreshed, int refund) {
+    if (!player.isOnline()) {
+      owe(player.getUniqueId(), refund);
+      return;
+    }
+    player.sendActionBar(Component.empty());
+    player.sendMessage(
+        Component.text(
+            "Refreshed the trades of %d villagers.".formatted(refreshed), NamedTextColor.GREEN));
+    refund(player, refund, "Refunded %s for villagers that left or unloaded.");
+  }
+
+  private static void refund(Player player, int amount, String message) {
+    if (amount == 0) return;
+    for (ItemStack leftover :
+        player
+            .getInventory()
+            .addItem(new ItemStack(Sane.TRADE_REFRESH_MATERIAL, amount))
+            .values()) {
+      player.getWorld().dropItem(player.getLocation(), leftover);
+    }
+    player.sendMessage(
+        Component.text(message.formatted(describeCost(amount)), NamedTextColor.YELLOW));
+  }
+
+  @EventHandler
+  public void onPlayerJoin(PlayerJoinEvent event) {
+    Player player = event.getPlayer();
+    Integer amount = refunds.remove(player.getUniqueId());
+    if (amount != null)
+      refund(player, amount, "Refunded %s owed from a town trade refresh while you were away.");
+  }
+
+  /// Write every refund still owed to the refunds file, counting the unfinished share of any
+  /// refresh still running as owed.
+  void saveRefunds() {
+    for (Job job : running.values())
+      owe(job.player, job.refund.get() + job.unsettledCost.get());
+    running.clear();
+    if (refunds.isEmpty()) return;
+    YamlConfiguration stored = new YamlConfiguration();
+    refunds.forEach((player, amount) -> stored.set(player.toString(), amount));
+    try {
+      stored.save(refundsFile);
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to write " + REFUNDS_FILE, e);
+    }
+  }
+}
@@ -0,0 +1,187 @@
+package com.scottlinder.sane;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.TextComponent;
+import net.kyori.adventure.text.format.NamedTextColor;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.enchantments.Enchantment;
+import org.bukkit.entity.Player;
+import org.bukkit.entity.Villager;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.Listener;
+import org.bukkit.event.entity.VillagerCareerChangeEvent;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.MerchantRecipe;
+import org.bukkit.inventory.meta.EnchantmentStorageMeta;
+import org.bukkit.util.BoundingBox;
+
+/// Tells players in town what a newly employed villager sells.
+///
+/// Career changes are collected per town-sized area for `batch-ticks` ticks, so a breeder farm
+/// employing dozens of villagers at once produces one combined message per player, with the
+/// recipients worked out once per batch. Under load the [LoadGovernor] may hold batches back
+/// until the server recovers, or stop announcing altogether.
+final class CareerAnnouncer implements Listener {
+
+  /// Past this many distinct items the description cache is simply dropped.
+  private static final int MAX_DESCRIPTIONS = 1024;
+
+  private record Area(UUID world, int x, int z) {}
+
+  /// A newly employed villager's line of the announcement and where it is, read on the
+  /// villager's thread.
+  private record Career(Component line, BoundingBox box) {}
+
+  private final TaskScheduler scheduler;
+  private final VillagerIndex villagerIndex;
+  private final Metrics metrics;
+  private final LoadGovernor loadGovernor;
+  private final Predicate<World> enabledIn;
+  private final long batchTicks;
+  private final Map<Area, List<Villager>> batches = new HashMap<>();
+  private final Map<ItemStack, String> descriptions = new ConcurrentHashMap<>();
+
+  CareerAnnouncer(
+      TaskScheduler scheduler,
+      VillagerIndex villagerIndex,
+      Metrics metrics,
+      LoadGovernor loadGovernor,
+      Predicate<World> enabledIn,
+      long batchTicks) {
+    this.scheduler = scheduler;
+    this.villagerIndex = villagerIndex;
+    this.metrics = metrics;
+    this.loadGovernor = loadGovernor;
+    this.enabledIn = enabledIn;
+    // Trades are only filled in after the career change event, so wait at least a tick.
+    this.batchTicks = Math.max(1, batchTicks);
+  }
+
+  private static String formatEnchantments(Map<Enchantment, Integer> enchantments) {
+    return enchantments.entrySet().stream()
+        .map((e) -> "[%s:%d]".formatted(Sane.cleanKey(e.getKey().getKey()), e.getValue()))
+        .collect(Collectors.joining());
+  }
+
+  static String describe(ItemStack stack) {
+    String itemName = Sane.cleanKey(stack.getType().getKey());
+    String enchantments = formatEnchantments(stack.getEnchantments());
+    if (stack.getItemMeta() instanceof EnchantmentStorageMeta enchantmentStorageMeta)
+      enchantments += formatEnchantments(enchantmentStorageMeta.getStoredEnchants());
+    return "%s%s".formatted(itemName, enchantments);
+  }
+
+  private String describeCached(ItemStack stack) {
+    String description = descriptions.get(stack);
+    if (description != null) return description;
+    description = describe(stack);
+    if (descriptions.size() >= MAX_DESCRIPTIONS) descriptions.clear();
+    descriptions.put(stack, description);
+    return description;
+  }
+
+  void appendCareer(TextComponent.Builder component, Villager villager) {
+    component
+        .append(
+            Component.text(Sane.cleanKey(villager.getProfession().getKey()), NamedTextColor.GREEN))
+        .append(Component.text(" now sells: ", NamedTextColor.WHITE));
+    for (MerchantRecipe recipe : villager.getRecipes()) {
+      component
+          .append(Component.text(describeCached(recipe.getResult()), NamedTextColor.GREEN))
+          .append(Component.text("; ", NamedTextColor.WHITE));
+    }
+  }
+
+  @EventHandler
+  public void onVillagerCareerChangeEvent(VillagerCareerChangeEvent event) {
+    long start = System.nanoTime();
+    try {
+      if (event.getReason() != VillagerCareerChangeEvent.ChangeReason.EMPLOYED) return;
+      announce(event.getEntity());
+    } finally {
+      metrics.record(Metrics.Timer.VILLAGER_CAREER_CHANGE, start);
+    }
+  }
+
+  /// Queue `villager` to have its trades announced with the rest of its area's batch.
+  void announce(Villager villager) {
+    if (loadGovernor.getLevel().announcements() == LoadGovernor.Announcements.DROP) return;
+    Location location = villager.getLocation();
+    if (!enabledIn.test(location.getWorld())) return;
+    Area area =
+        new Area(
+            location.getWorld().getUID(),
+            Math.floorDiv(location.getBlockX(), Sane.TOWN_DIM_X),
+            Math.floorDiv(location.getBlockZ(), Sane.TOWN_DIM_Z));
+    boolean first;
+    synchronized (batches) {
+      List<Villager> batch = batches.computeIfAbsent(area, a -> new ArrayList<>());
+      first = batch.isEmpty();
+      batch.add(villager);
+    }
+    if (first) scheduler.runAtLater(location, () -> flush(area, location), batchTicks);
+  }
+
+  private void flush(Area area, Location location) {
+    if (loadGovernor.getLevel().announcements() == LoadGovernor.Announcements.QUEUE) {
+      scheduler.runAtLater(location, () -> flush(area, location), batchTicks);
+      return;
+    }
+    List<Villager> batch;
+    synchronized (batches) {
+      batch = batches.remove(area);
+    }
+    if (batch == null) return;
+    // A town can span regions on Folia, so each villager is read on its own thread.
+    List<CompletableFuture<Career>> reads = new ArrayList<>(batch.size());
+    for (Villager villager : batch) {
+      reads.add(scheduler.supply(villager, () -> getCareer(villager), null));
+    }
+    TaskScheduler.allOf(reads)
+        .thenAccept(careers -> scheduler.execute(location, () -> broadcast(careers, location)));
+  }
+
+  private Career getCareer(Villager villager) {
+    if (!villager.isValid()) return null;
+    TextComponent.Builder line = Component.text();
+    appendCareer(line, villager);
+    return new Career(line.build(), villager.getBoundingBox());
+  }
+
+  private void broadcast(List<Career> careers, Location location) {
+    if (careers.isEmpty()) return;
+    FlightEvents.CareerBroadcast event = new FlightEvents.CareerBroadcast();
+    event.begin();
+    TextComponent.Builder component = Component.text();
+    BoundingBox box = null;
+    for (Career career : careers) {
+      if (box == null) {
+        box = career.box();
+      } else {
+        box.union(career.box());
+        component.append(Component.newline());
+      }
+      component.append(career.line());
+    }
+    box.expand(Sane.TOWN_DIM_X, Sane.TOWN_DIM_Y, Sane.TOWN_DIM_Z);
+    Component message = component.build();
+    List<Player> recipients = villagerIndex.getNearbyPlayers(location.getWorld(), box);
+    for (Player nearbyPlayer : recipients) nearbyPlayer.sendMessage(message);
+    if (event.shouldCommit()) {
+      event.setLocation(location);
+      event.villagers = careers.size();
+      event.recipients = recipients.size();
+      event.commit();
+    }
+  }
+}
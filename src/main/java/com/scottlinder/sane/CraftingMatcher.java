@@ -0,0 +1,97 @@
+package com.scottlinder.sane;
+
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.Listener;
+import org.bukkit.event.inventory.PrepareItemCraftEvent;
+import org.bukkit.inventory.ItemStack;
+
+/// Crafts the reverse and vegan recipes straight from the crafting grid, without registering any
+/// recipes with the server.
+///
+/// Each grid change is classified in one pass over its slots, by the bounding box, count and
+/// material of its items, and the output is then a single `EnumMap` lookup. The server still
+/// consumes one item from each slot when the result is taken, as for any other recipe.
+final class CraftingMatcher implements Listener {
+
+  /// Outputs for a 2x3 block of one material (reverse slabs and walls), by that material.
+  private final Map<Material, ItemStack> twoByThree = new EnumMap<>(Material.class);
+
+  /// Outputs for a 2x2 block of one material (reverse stairs), by that material.
+  private final Map<Material, ItemStack> twoByTwo = new EnumMap<>(Material.class);
+
+  /// Outputs for a full 3x3 ring of one material around a wool center (vegan), by that material.
+  private final Map<Material, ItemStack> ring = new EnumMap<>(Material.class);
+
+  private final Set<Material> ringCenters = EnumSet.noneOf(Material.class);
+
+  private final Predicate<World> enabledIn;
+
+  CraftingMatcher(Predicate<World> enabledIn) {
+    this.enabledIn = enabledIn;
+  }
+
+  void addTwoByThree(Material ingredient, ItemStack result) {
+    twoByThree.put(ingredient, result);
+  }
+
+  void addTwoByTwo(Material ingredient, ItemStack result) {
+    twoByTwo.put(ingredient, result);
+  }
+
+  void addRing(Material ingredient, Set<Material> centers, ItemStack result) {
+    ring.put(ingredient, result);
+    ringCenters.addAll(centers);
+  }
+
+  private static boolean isEmpty(ItemStack stack) {
+    return stack == null || stack.isEmpty();
+  }
+
+  /// The output for a crafting grid, given row by row, or `null` if it matches nothing here.
+  ItemStack match(ItemStack[] matrix) {
+    int width = matrix.length == 4 ? 2 : 3;
+    int minRow = width, maxRow = -1, minCol = width, maxCol = -1, count = 0;
+    Material material = null;
+    boolean uniform = true;
+    for (int i = 0; i < matrix.length; i++) {
+      if (isEmpty(matrix[i])) continue;
+      int row = i / width, col = i % width;
+      minRow = Math.min(minRow, row);
+      maxRow = Math.max(maxRow, row);
+      minCol = Math.min(minCol, col);
+      maxCol = Math.max(maxCol, col);
+      count++;
+      if (material == null) material = matrix[i].getType();
+      else if (material != matrix[i].getType()) uniform = false;
+    }
+    if (count == 0) return null;
+    int rows = maxRow - minRow + 1, cols = maxCol - minCol + 1;
+    if (uniform) {
+      if (rows == 2 && cols == 3 && count == 6) return twoByThree.get(material);
+      if (rows == 2 && cols == 2 && count == 4) return twoByTwo.get(material);
+      return null;
+    }
+    if (count != 9) return null;
+    Material outer = matrix[0].getType();
+    for (int i = 0; i < 9; i++) {
+      if (i != 4 && matrix[i].getType() != outer) return null;
+    }
+    if (!ringCenters.contains(matrix[4].getType())) return null;
+    return ring.get(outer);
+  }
+
+  @EventHandler
+  public void onPrepareItemCraft(PrepareItemCraftEvent event) {
+    if (event.getRecipe() != null || !enabledIn.test(event.getView().getPlayer().getWorld()))
+      return;
+    ItemStack result = match(event.getInventory().getMatrix());
+    if (result != null) event.getInventory().setResult(result);
+  }
+}
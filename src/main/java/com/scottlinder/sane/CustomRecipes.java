@@ -0,0 +1,271 @@
+package com.scottlinder.sane;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import org.bukkit.Keyed;
+import org.bukkit.Material;
+import org.bukkit.NamespacedKey;
+import org.bukkit.Server;
+import org.bukkit.Tag;
+import org.bukkit.World;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.Recipe;
+import org.bukkit.inventory.RecipeChoice;
+import org.bukkit.inventory.RecipeChoice.ExactChoice;
+import org.bukkit.inventory.RecipeChoice.MaterialChoice;
+import org.bukkit.inventory.ShapedRecipe;
+import org.bukkit.plugin.java.JavaPlugin;
+
+/// The plugin's extra crafting recipes: "reverse" recipes turning slabs, stairs and walls back
+/// into the blocks they were made from, and "vegan" leather.
+///
+/// Which block each slab, stairs and wall comes from is read off the server's own recipes, so
+/// new blocks are picked up without any changes here. The derived table is cached on disk, keyed
+/// by server version, so later boots skip the derivation. All recipes are registered in one batch
+/// with a single recipe update sent to clients at the end.
+final class CustomRecipes {
+
+  private static final String CACHE_FILE = "reverse-recipes.yml";
+  private static final String CACHE_VERSION_KEY = "server-version";
+
+  /// What can be ringed around wool to make leather, by recipe key name.
+  private static final Map<String, Material> VEGAN_LEATHER =
+      Map.of("mushroom", Material.BROWN_MUSHROOM, "cactus", Material.CACTUS);
+
+  /// A kind of partial block with its own reverse recipe shape and yield.
+  private enum Reverse {
+    SLAB(Tag.SLABS, "_SLAB", 3, "   ", "AAA", "AAA"),
+    STAIRS(Tag.STAIRS, "_STAIRS", 6, "   ", "AA ", "AA "),
+    WALL(Tag.WALLS, "_WALL", 6, "   ", "AAA", "AAA");
+
+    final Tag<Material> tag;
+    final String suffix;
+    final int count;
+    final String shapeTop;
+    final String shapeMid;
+    final String shapeBot;
+
+    Reverse(
+        Tag<Material> tag,
+        String suffix,
+        int count,
+        String shapeTop,
+        String shapeMid,
+        String shapeBot) {
+      this.tag = tag;
+      this.suffix = suffix;
+      this.count = count;
+      this.shapeTop = shapeTop;
+      this.shapeMid = shapeMid;
+      this.shapeBot = shapeBot;
+    }
+
+    String key() {
+      return name().toLowerCase(Locale.ROOT);
+    }
+  }
+
+  /// A keyed "RecipeIngredient", with a very compact name as it appears in
+  /// argument lists.
+  private static class RI {
+    char key;
+    Object o;
+
+    public RI(char key, Object o) {
+      this.key = key;
+      this.o = o;
+    }
+
+    public void setIn(ShapedRecipe r) {
+      if (o instanceof Material m) r.setIngredient(key, m);
+      else if (o instanceof RecipeChoice m) r.setIngredient(key, m);
+      else throw new RuntimeException("Unhandled recipe ingredient type");
+    }
+  }
+
+  private final JavaPlugin plugin;
+  private final Server server;
+  private final List<Recipe> recipes = new ArrayList<>();
+
+  CustomRecipes(JavaPlugin plugin) {
+    this.plugin = plugin;
+    this.server = plugin.getServer();
+  }
+
+  private void addRecipe(
+      String key,
+      Material material,
+      int count,
+      String shapeTop,
+      String shapeMid,
+      String shapeBot,
+      Set<RI> ingredients) {
+    ShapedRecipe recipe =
+        new ShapedRecipe(new NamespacedKey(plugin, key), new ItemStack(material, count));
+    recipe.shape(shapeTop, shapeMid, shapeBot);
+    for (var i : ingredients) i.setIn(recipe);
+    recipes.add(recipe);
+  }
+
+  /// The materials a recipe's only ingredient may be, or nothing if it has several ingredients.
+  private static List<Material> getOnlyIngredient(ShapedRecipe recipe) {
+    List<RecipeChoice> choices =
+        recipe.getChoiceMap().values().stream().filter(Objects::nonNull).distinct().toList();
+    if (choices.size() != 1) return List.of();
+    if (choices.get(0) instanceof MaterialChoice materialChoice) return materialChoice.getChoices();
+    if (choices.get(0) instanceof ExactChoice exactChoice)
+      return exactChoice.getChoices().stream().map(ItemStack::getType).toList();
+    return List.of();
+  }
+
+  /// Pick the block a partial block is "really" made of when its recipe accepts several, e.g.
+  /// bricks rather than chiseled variants, falling back to the first choice.
+  private static Material getFullMaterial(Reverse reverse, Material part, List<Material> choices) {
+    String base = part.name().substring(0, part.name().length() - reverse.suffix.length());
+    for (String candidate : List.of(base, base + "S", base + "_BLOCK", base + "_PLANKS")) {
+      for (Material choice : choices) {
+        if (choice.name().equals(candidate)) return choice;
+      }
+    }
+    return choices.get(0);
+  }
+
+  private Map<Reverse, Map<Material, Material>> deriveReverseTable() {
+    Map<Reverse, Map<Material, Material>> table = new EnumMap<>(Reverse.class);
+    for (Reverse reverse : Reverse.values()) table.put(reverse, new LinkedHashMap<>());
+    for (Iterator<Recipe> it = server.recipeIterator(); it.hasNext(); ) {
+      if (!(it.next() instanceof ShapedRecipe recipe)) continue;
+      if (!recipe.getKey().getNamespace().equals(NamespacedKey.MINECRAFT)) continue;
+      Material part = recipe.getResult().getType();
+      for (Reverse reverse : Reverse.values()) {
+        if (!reverse.tag.isTagged(part) || !part.name().endsWith(reverse.suffix)) continue;
+        List<Material> choices =
+            getOnlyIngredient(recipe).stream().filter(m -> !reverse.tag.isTagged(m)).toList();
+        if (!choices.isEmpty())
+          table.get(reverse).putIfAbsent(part, getFullMaterial(reverse, part, choices));
+      }
+    }
+    return table;
+  }
+
+  private Map<Reverse, Map<Material, Material>> loadReverseTable(File file) {
+    if (!file.isFile()) return null;
+    YamlConfiguration cache = YamlConfiguration.loadConfiguration(file);
+    if (!server.getVersion().equals(cache.getString(CACHE_VERSION_KEY))) return null;
+    Map<Reverse, Map<Material, Material>> table = new EnumMap<>(Reverse.class);
+    for (Reverse reverse : Reverse.values()) {
+      Map<Material, Material> parts = new LinkedHashMap<>();
+      ConfigurationSection section = cache.getConfigurationSection(reverse.key());
+      if (section == null) return null;
+      for (String key : section.getKeys(false)) {
+        Material part = Material.getMaterial(key);
+        Material full = Material.getMaterial(section.getString(key, ""));
+        if (part != null && full != null) parts.put(part, full);
+      }
+      table.put(reverse, parts);
+    }
+    return table;
+  }
+
+  private void saveReverseTable(File file, Map<Reverse, Map<Material, Material>> table) {
+    YamlConfiguration cache = new YamlConfiguration();
+    cache.set(CACHE_VERSION_KEY, server.getVersion());
+    for (var entry : table.entrySet()) {
+      ConfigurationSection section = cache.createSection(entry.getKey().key());
+      for (var part : entry.getValue().entrySet())
+        section.set(part.getKey().name(), part.getValue().name());
+    }
+    try {
+      cache.save(file);
+    } catch (IOException e) {
+      plugin.getLogger().log(Level.WARNING, "Failed to cache reverse recipes", e);
+    }
+  }
+
+  private Map<Reverse, Map<Material, Material>> getReverseTable() {
+    File file = new File(plugin.getDataFolder(), CACHE_FILE);
+    Map<Reverse, Map<Material, Material>> table = loadReverseTable(file);
+    if (table == null) {
+      table = deriveReverseTable();
+      saveReverseTable(file, table);
+    }
+    return table;
+  }
+
+  private void addReverseRecipes() {
+    for (var entry : getReverseTable().entrySet()) {
+      Reverse reverse = entry.getKey();
+      for (var part : entry.getValue().entrySet()) {
+        addRecipe(
+            "reverse_%s_%s_%s".formatted(reverse.key(), part.getKey(), part.getValue()),
+            part.getValue(),
+            reverse.count,
+            reverse.shapeTop,
+            reverse.shapeMid,
+            reverse.shapeBot,
+            Set.of(new RI('A', part.getKey())));
+      }
+    }
+  }
+
+  private void addVeganRecipes() {
+    for (var entry : VEGAN_LEATHER.entrySet()) {
+      addRecipe(
+          "vegan_%s_leather".formatted(entry.getKey()),
+          Material.LEATHER,
+          1,
+          "BBB",
+          "BAB",
+          "BBB",
+          Set.of(new RI('A', new MaterialChoice(Tag.WOOL)), new RI('B', entry.getValue())));
+    }
+  }
+
+  /// Build every recipe and register them all, resending recipes to clients only once. Does
+  /// nothing if they are already registered.
+  void register() {
+    if (!recipes.isEmpty()) return;
+    addReverseRecipes();
+    addVeganRecipes();
+    for (Recipe recipe : recipes) server.addRecipe(recipe, false);
+    server.updateRecipes();
+  }
+
+  /// Remove every recipe added by {@link #register()}, resending recipes to clients only once.
+  void unregister() {
+    if (recipes.isEmpty()) return;
+    for (Recipe recipe : recipes) server.removeRecipe(((Keyed) recipe).getKey(), false);
+    recipes.clear();
+    server.updateRecipes();
+  }
+
+  /// Build a matcher crafting the same items from the grid in the worlds of `enabledIn`, for use
+  /// instead of {@link #register()}.
+  CraftingMatcher createMatcher(Predicate<World> enabledIn) {
+    CraftingMatcher matcher = new CraftingMatcher(enabledIn);
+    for (var entry : getReverseTable().entrySet()) {
+      Reverse reverse = entry.getKey();
+      for (var part : entry.getValue().entrySet()) {
+        ItemStack result = new ItemStack(part.getValue(), reverse.count);
+        if (reverse == Reverse.STAIRS) matcher.addTwoByTwo(part.getKey(), result);
+        else matcher.addTwoByThree(part.getKey(), result);
+      }
+    }
+    for (Material ring : VEGAN_LEATHER.values())
+      matcher.addRing(ring, Tag.WOOL.getValues(), new ItemStack(Material.LEATHER));
+    return matcher;
+  }
+}
@@ -0,0 +1,121 @@
+package com.scottlinder.sane;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import org.bukkit.World;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.event.HandlerList;
+import org.bukkit.event.Listener;
+import org.bukkit.plugin.Plugin;
+
+/// Which of the plugin's features are on, and in which worlds.
+///
+/// A feature's listeners are only registered while it is enabled, so a feature turned off is not
+/// dispatched any events at all. Handler lists are server-wide, though, so a feature turned off
+/// in some worlds only still receives their events and has to check [#isEnabled(Feature, World)]
+/// itself. [#reload()] rereads the `features` section of config.yml and registers or unregisters
+/// listeners to match.
+final class FeatureToggles {
+
+  enum Feature {
+    TRADING_POST,
+    WORKSTATION_RESET,
+    BRIBE,
+    CAREER_ANNOUNCEMENTS,
+    PACIFIER,
+    RECIPES;
+
+    String key() {
+      return name().toLowerCase(Locale.ROOT).replace('_', '-');
+    }
+  }
+
+  private record State(boolean enabled, Set<String> disabledWorlds) {}
+
+  private static final State ON = new State(true, Set.of());
+
+  private final Plugin plugin;
+  private final Map<Feature, List<Listener>> listeners = new EnumMap<>(Feature.class);
+  private final Map<Feature, List<Consumer<Boolean>>> hooks = new EnumMap<>(Feature.class);
+  private final Set<Feature> registered = EnumSet.noneOf(Feature.class);
+  private boolean applied;
+
+  /// Replaced wholesale on every change, so readers never need a lock.
+  private volatile Map<Feature, State> states = new EnumMap<>(Feature.class);
+
+  FeatureToggles(Plugin plugin) {
+    this.plugin = plugin;
+    for (Feature feature : Feature.values()) {
+      listeners.put(feature, new ArrayList<>());
+      hooks.put(feature, new ArrayList<>());
+      states.put(feature, ON);
+    }
+  }
+
+  /// Register `listener` whenever `feature` is enabled.
+  void add(Feature feature, Listener listener) {
+    listeners.get(feature).add(listener);
+  }
+
+  /// Call `hook` after every [#apply(ConfigurationSection)] with whether `feature` is enabled,
+  /// for setup and teardown beyond registering listeners. Hooks must not mind repeat calls.
+  void onApply(Feature feature, Consumer<Boolean> hook) {
+    hooks.get(feature).add(hook);
+  }
+
+  boolean isEnabled(Feature feature, World world) {
+    State state = states.get(feature);
+    return state.enabled() && !state.disabledWorlds().contains(world.getName());
+  }
+
+  /// The worlds `feature` is enabled in, for components that only need that.
+  Predicate<World> enabledIn(Feature feature) {
+    return world -> isEnabled(feature, world);
+  }
+
+  private static State parseState(ConfigurationSection config, Feature feature) {
+    ConfigurationSection section =
+        config == null ? null : config.getConfigurationSection(feature.key());
+    if (section == null) return ON;
+    return new State(
+        section.getBoolean("enabled", true), Set.copyOf(section.getStringList("disabled-worlds")));
+  }
+
+  /// Take on the feature settings in `config`, registering the listeners of features that have
+  /// been enabled and unregistering those of features that have been disabled.
+  synchronized void apply(ConfigurationSection config) {
+    Map<Feature, State> newStates = new EnumMap<>(Feature.class);
+    for (Feature feature : Feature.values()) newStates.put(feature, parseState(config, feature));
+    states = newStates;
+    for (Feature feature : Feature.values()) {
+      boolean enabled = newStates.get(feature).enabled();
+      if (enabled != registered.contains(feature)) {
+        if (enabled) {
+          registered.add(feature);
+          for (Listener listener : listeners.get(feature))
+            plugin.getServer().getPluginManager().registerEvents(listener, plugin);
+        } else {
+          registered.remove(feature);
+          for (Listener listener : listeners.get(feature)) HandlerList.unregisterAll(listener);
+        }
+        if (applied)
+          plugin.getLogger().info("%s %s".formatted(feature.key(), enabled ? "on" : "off"));
+      }
+      for (Consumer<Boolean> hook : hooks.get(feature)) hook.accept(enabled);
+    }
+    applied = true;
+  }
+
+  /// Reread config.yml and apply its `features` section.
+  void reload() {
+    plugin.reloadConfig();
+    apply(plugin.getConfig().getConfigurationSection("features"));
+  }
+}
@@ -0,0 +1,124 @@
+package com.scottlinder.sane;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import org.bukkit.Location;
+
+/// Java Flight Recorder events for the plugin's main operations.
+///
+/// Each event is tagged with the world and chunk it happened in, so a recording can tie a slow
+/// tick to a particular bell or villager hall. Callers only fill an event in once
+/// `shouldCommit()` says a recording wants it, so with nothing recording an event costs an
+/// allocation the JIT removes.
+final class FlightEvents {
+
+  private FlightEvents() {}
+
+  @Category("Sane")
+  @StackTrace(false)
+  abstract static class LocatedEvent extends Event {
+    @Label("World")
+    String world;
+
+    @Label("Chunk X")
+    int chunkX;
+
+    @Label("Chunk Z")
+    int chunkZ;
+
+    void setLocation(Location location) {
+      world = location.getWorld().getName();
+      chunkX = location.getBlockX() >> 4;
+      chunkZ = location.getBlockZ() >> 4;
+    }
+  }
+
+  @Name("com.scottlinder.sane.TradingPostBuild")
+  @Label("Trading Post Build")
+  @Description("Offers built for a Trading Post on a worker thread")
+  static final class TradingPostBuild extends LocatedEvent {
+    @Label("Villagers Scanned")
+    int villagers;
+
+    @Label("Stored Villagers")
+    int storedVillagers;
+
+    @Label("Recipes Emitted")
+    int recipes;
+  }
+
+  @Name("com.scottlinder.sane.BribeRefresh")
+  @Label("Bribe Refresh")
+  @Description("A villager's trades rerolled for a bribe, alone or as part of a town refresh")
+  static final class BribeRefresh extends LocatedEvent {
+    @Label("Level")
+    int level;
+
+    @Label("Cost")
+    int cost;
+  }
+
+  @Name("com.scottlinder.sane.WorkstationReset")
+  @Label("Workstation Reset")
+  @Description("A workstation toggled, or its villagers reset in place")
+  static final class WorkstationReset extends LocatedEvent {
+    @Label("Workstation")
+    String workstation;
+
+    @Label("Direct")
+    boolean direct;
+
+    @Label("Villagers Reset")
+    int villagers;
+  }
+
+  @Name("com.scottlinder.sane.CareerBroadcast")
+  @Label("Career Broadcast")
+  @Description("A batch of newly employed villagers announced to the players in town")
+  static final class CareerBroadcast extends LocatedEvent {
+    @Label("Villagers")
+    int villagers;
+
+    @Label("Recipients")
+    int recipients;
+  }
+
+  @Name("com.scottlinder.sane.PacifierTargetCancel")
+  @Label("Pacifier Target Cancel")
+  @Description("A hostile mob kept from targeting a pacified player")
+  static final class PacifierTargetCancel extends LocatedEvent {
+    @Label("Mob")
+    String mob;
+
+    @Label("Player")
+    String player;
+  }
+
+  @Name("com.scottlinder.sane.PacifierDeaggro")
+  @Label("Pacifier De-aggro")
+  @Description("The mobs targeting a player let go once the player's aggro cooldown ran out")
+  static final class PacifierDeaggro extends LocatedEvent {
+    @Label("Player")
+    String player;
+
+    @Label("Mobs")
+    int mobs;
+  }
+
+  @Name("com.scottlinder.sane.PacifierCleanup")
+  @Label("Pacifier Cleanup")
+  @Description("Pacifier state of players who left dropped, across every world")
+  @Category("Sane")
+  @StackTrace(false)
+  static final class PacifierCleanup extends Event {
+    @Label("Players Forgotten")
+    int players;
+
+    @Label("Mobs Forgotten")
+    int mobs;
+  }
+}
@@ -0,0 +1,78 @@
+package com.scottlinder.sane;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/// A fixed-size, lock-free histogram of durations in nanoseconds, laid out like HdrHistogram:
+/// every power of two is split into {@value #SUB_BUCKETS} linear sub-buckets, so any recorded
+/// value is reported to within about 3%, from a nanosecond up to `Long.MAX_VALUE`.
+///
+/// Recording is a couple of atomic increments, cheap enough to leave on around every event
+/// handler on every region thread.
+final class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder total = new LongAdder();
+  private final AtomicLong max = new AtomicLong();
+
+  private static int bucket(long value) {
+    if (value < SUB_BUCKETS) return (int) value;
+    int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+    int shift = exponent - SUB_BUCKET_BITS;
+    return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+  }
+
+  /// The smallest value filed under `bucket`.
+  private static long lowestValue(int bucket) {
+    if (bucket < SUB_BUCKETS) return bucket;
+    int shift = bucket / SUB_BUCKETS - 1;
+    return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+  }
+
+  void record(long nanos) {
+    if (nanos < 0) nanos = 0;
+    counts.incrementAndGet(bucket(nanos));
+    count.increment();
+    total.add(nanos);
+    max.accumulateAndGet(nanos, Math::max);
+  }
+
+  long getCount() {
+    return count.sum();
+  }
+
+  /// The sum of every recorded value.
+  long getTotal() {
+    return total.sum();
+  }
+
+  long getMax() {
+    return max.get();
+  }
+
+  /// The value at or below which `percentile` percent of recordings fall, or 0 if there are none.
+  long getValueAtPercentile(double percentile) {
+    long total = getCount();
+    if (total == 0) return 0;
+    long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts.get(i);
+      if (seen >= rank) return Math.min(lowestValue(i), getMax());
+    }
+    return getMax();
+  }
+
+  void reset() {
+    for (int i = 0; i < BUCKETS; i++) counts.set(i, 0);
+    count.reset();
+    total.reset();
+    max.set(0);
+  }
+}
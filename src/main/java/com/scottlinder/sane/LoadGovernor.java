@@ -0,0 +1,162 @@
+package com.scottlinder.sane;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.logging.Logger;
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.format.NamedTextColor;
+import org.bukkit.Bukkit;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.entity.Player;
+
+/// Scales back the plugin's most expensive work while the server is falling behind.
+///
+/// Every `check-ticks` ticks the server's average tick time is compared with the configured
+/// `levels`, each entered once the average reaches its `mspt` and left once it falls
+/// `recovery-mspt` below that. Levels are stepped through one at a time in either direction, so a
+/// single slow tick cannot jump straight to the harshest one, and every step is logged.
+final class LoadGovernor {
+
+  private static final long NANOS_PER_TICK = Duration.ofMillis(50).toNanos();
+
+  /// What to do with career announcements at a load level.
+  enum Announcements {
+    /// Announce each batch when its window closes.
+    ANNOUNCE,
+    /// Hold batches, letting them grow, until the level allows announcing again.
+    QUEUE,
+    /// Do not announce at all.
+    DROP
+  }
+
+  /// How far the plugin's features are scaled back at one load level, which is entered once the
+  /// average tick time reaches `mspt` milliseconds. The rest match the options in config.yml.
+  record Level(
+      double mspt,
+      double townScale,
+      Announcements announcements,
+      int cleanupStretch,
+      long clickCooldownTicks) {}
+
+  private static final Level NORMAL = new Level(0, 1, Announcements.ANNOUNCE, 1, 0);
+
+  private final Logger logger;
+  private final double recoveryMspt;
+  private final List<Level> levels = new ArrayList<>();
+  private final Map<UUID, Long> lastClicks = new ConcurrentHashMap<>();
+  private final List<BiConsumer<Level, Level>> listeners = new CopyOnWriteArrayList<>();
+  private boolean enabled;
+  private int current;
+  private volatile Level level = NORMAL;
+
+  LoadGovernor(Logger logger, ConfigurationSection config) {
+    this.logger = logger;
+    this.enabled = config.getBoolean("enabled", false);
+    this.recoveryMspt = Math.max(0, config.getDouble("recovery-mspt"));
+    levels.add(NORMAL);
+    List<Level> configured = new ArrayList<>();
+    for (Map<?, ?> map : config.getMapList("levels")) configured.add(parseLevel(map));
+    configured.sort(Comparator.comparingDouble(Level::mspt));
+    levels.addAll(configured);
+  }
+
+  private static double getDouble(Map<?, ?> map, String key, double fallback) {
+    return map.get(key) instanceof Number number ? number.doubleValue() : fallback;
+  }
+
+  private Announcements getAnnouncements(Map<?, ?> map) {
+    Object announcements = map.get("career-announcements");
+    if (announcements == null) return Announcements.ANNOUNCE;
+    try {
+      return Announcements.valueOf(announcements.toString().toUpperCase(Locale.ROOT));
+    } catch (IllegalArgumentException e) {
+      logger.warning(
+          "Unknown career-announcements %s in a load level, announcing instead"
+              .formatted(announcements));
+      return Announcements.ANNOUNCE;
+    }
+  }
+
+  private Level parseLevel(Map<?, ?> map) {
+    return new Level(
+        getDouble(map, "mspt", Double.MAX_VALUE),
+        Math.clamp(getDouble(map, "town-scale", 1), 0.1, 1),
+        getAnnouncements(map),
+        (int) Math.max(1, getDouble(map, "cleanup-stretch", 1)),
+        (long) Math.max(0, getDouble(map, "click-cooldown-ticks", 0)));
+  }
+
+  /// The level currently in effect.
+  Level getLevel() {
+    return level;
+  }
+
+  /// Call `listener` with the old and new level on every step between levels, on the global
+  /// region.
+  void onLevelChange(BiConsumer<Level, Level> listener) {
+    listeners.add(listener);
+  }
+
+  /// Compare the average tick time with the levels and step one level up or down if called for.
+  /// Runs on the global region.
+  void check() {
+    if (!enabled || levels.size() == 1) return;
+    double mspt;
+    try {
+      mspt = Bukkit.getAverageTickTime();
+    } catch (UnsupportedOperationException e) {
+      logger.warning("This server does not report its tick time, so load levels are disabled");
+      enabled = false;
+      return;
+    }
+    int next = current;
+    if (current + 1 < levels.size() && mspt >= levels.get(current + 1).mspt()) next++;
+    else if (current > 0 && mspt < levels.get(current).mspt() - recoveryMspt) next--;
+    if (next != current) {
+      logger.info(
+          "Load level %d -> %d at %.1f mspt: %s"
+              .formatted(current, next, mspt, levels.get(next)));
+      Level previous = level;
+      current = next;
+      level = levels.get(next);
+      for (BiConsumer<Level, Level> listener : listeners) listener.accept(previous, level);
+    }
+    long cooldownNanos = level.clickCooldownTicks() * NANOS_PER_TICK;
+    long now = System.nanoTime();
+    lastClicks.values().removeIf(last -> now - last >= cooldownNanos);
+  }
+
+  /// Whether `player` may use a bell or workstation now, given the click cooldown at the current
+  /// level. If not, the player is told to wait.
+  boolean tryClick(Player player) {
+    long cooldownTicks = level.clickCooldownTicks();
+    if (cooldownTicks == 0) return true;
+    long now = System.nanoTime();
+    Long last = lastClicks.get(player.getUniqueId());
+    if (last != null && now - last < cooldownTicks * NANOS_PER_TICK) {
+      player.sendActionBar(
+          Component.text("The server is busy, try again in a moment.", NamedTextColor.YELLOW));
+      return false;
+    }
+    lastClicks.put(player.getUniqueId(), now);
+    return true;
+  }
+
+  /// Wrap the periodic `task` so that it only runs every `cleanup-stretch` periods at the
+  /// current level.
+  Runnable stretch(Runnable task) {
+    AtomicLong periods = new AtomicLong();
+    return () -> {
+      if (periods.incrementAndGet() % level.cleanupStretch() == 0) task.run();
+    };
+  }
+}
@@ -0,0 +1,124 @@
+package com.scottlinder.sane;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+/// Always-on timing of each feature's event handlers and scheduled tasks, plus counts of the
+/// villagers and recipes they went through, for `/sane stats` and the `stats.yml` dump.
+final class Metrics {
+
+  /// Something timed on every run. Click handlers are only timed for clicks they act on, so that
+  /// the many clicks they pass over do not drag their percentiles down.
+  enum Timer {
+    TRADING_POST_CLICK,
+    WORKSTATION_CLICK,
+    BULK_REFRESH_CLICK,
+    BRIBE_CLICK,
+    ENTITY_TARGET,
+    ENTITY_DAMAGE_BY_ENTITY,
+    VILLAGER_CAREER_CHANGE,
+    TRADING_POST_BUILD,
+    WORKSTATION_RESET,
+    BULK_REFRESH,
+    PACIFIER_CLEANUP;
+
+    String key() {
+      return name().toLowerCase(Locale.ROOT).replace('_', '-');
+    }
+  }
+
+  /// Something counted as it goes by.
+  enum Counter {
+    VILLAGERS_SCANNED,
+    RECIPES_BUILT;
+
+    String key() {
+      return name().toLowerCase(Locale.ROOT).replace('_', '-');
+    }
+  }
+
+  private final Map<Timer, LatencyHistogram> timers = new EnumMap<>(Timer.class);
+  private final Map<Counter, LongAdder> counters = new EnumMap<>(Counter.class);
+
+  Metrics() {
+    for (Timer timer : Timer.values()) timers.put(timer, new LatencyHistogram());
+    for (Counter counter : Counter.values()) counters.put(counter, new LongAdder());
+  }
+
+  /// Record one run of `timer` that started at `startNanos`, as given by `System.nanoTime()`.
+  void record(Timer timer, long startNanos) {
+    timers.get(timer).record(System.nanoTime() - startNanos);
+  }
+
+  void count(Counter counter, long amount) {
+    counters.get(counter).add(amount);
+  }
+
+  LatencyHistogram get(Timer timer) {
+    return timers.get(timer);
+  }
+
+  long get(Counter counter) {
+    return counters.get(counter).sum();
+  }
+
+  void reset() {
+    timers.values().forEach(LatencyHistogram::reset);
+    counters.values().forEach(LongAdder::reset);
+  }
+
+  private static String formatNanos(long nanos) {
+    if (nanos < 1_000) return nanos + "ns";
+    if (nanos < 1_000_000) return "%.1fµs".formatted(nanos / 1e3);
+    return "%.2fms".formatted(nanos / 1e6);
+  }
+
+  /// One line per timer that has run, then one line of counters.
+  List<String> describe() {
+    List<String> lines = new ArrayList<>();
+    for (var entry : timers.entrySet()) {
+      LatencyHistogram histogram = entry.getValue();
+      if (histogram.getCount() == 0) continue;
+      lines.add(
+          "%s: %d runs, p50 %s, p99 %s, max %s"
+              .formatted(
+                  entry.getKey().key(),
+                  histogram.getCount(),
+                  formatNanos(histogram.getValueAtPercentile(50)),
+                  formatNanos(histogram.getValueAtPercentile(99)),
+                  formatNanos(histogram.getMax())));
+    }
+    StringBuilder line = new StringBuilder();
+    for (var entry : counters.entrySet()) {
+      if (!line.isEmpty()) line.append(", ");
+      line.append(entry.getKey().key()).append(' ').append(entry.getValue().sum());
+    }
+    lines.add(line.toString());
+    return lines;
+  }
+
+  /// Write every timer and counter to `file` as YAML, with durations in nanoseconds.
+  void dump(File file) throws IOException {
+    YamlConfiguration stats = new YamlConfiguration();
+    for (var entry : timers.entrySet()) {
+      LatencyHistogram histogram = entry.getValue();
+      ConfigurationSection section = stats.createSection("timers." + entry.getKey().key());
+      section.set("count", histogram.getCount());
+      section.set("total-nanos", histogram.getTotal());
+      section.set("p50-nanos", histogram.getValueAtPercentile(50));
+      section.set("p99-nanos", histogram.getValueAtPercentile(99));
+      section.set("max-nanos", histogram.getMax());
+    }
+    for (var entry : counters.entrySet())
+      stats.set("counters." + entry.getKey().key(), entry.getValue().sum());
+    stats.save(file);
+  }
+}
@@ -0,0 +1,63 @@
+package com.scottlinder.sane;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.MerchantRecipe;
+
+/// Canonicalizes Trading Post offers, so that identical trades from different villagers collapse
+/// into one infinite recipe and the result stacks are shared between snapshots.
+///
+/// Offers are identified by `ItemStack` equality of their result and ingredients, which covers
+/// amounts and all item meta, including enchantments and stored enchantments. Only results are
+/// shared, since `MerchantRecipe` keeps its own copy of every ingredient it is given; the
+/// ingredients are copied once per distinct offer rather than once per villager.
+///
+/// Trading Posts in different regions may canonicalize concurrently on Folia, so access is
+/// serialized.
+final class OfferInterner {
+
+  /// Past this many distinct offers the tables are simply dropped and rebuilt on demand.
+  private static final int MAX_INTERNED_OFFERS = 4096;
+
+  private record Key(ItemStack result, List<ItemStack> ingredients) {}
+
+  private final Map<ItemStack, ItemStack> stacks = new HashMap<>();
+  private final Map<Key, MerchantRecipe> offers = new HashMap<>();
+
+  private ItemStack intern(ItemStack stack) {
+    return stacks.computeIfAbsent(stack, s -> s);
+  }
+
+  private MerchantRecipe intern(MerchantRecipe recipe) {
+    Key key = new Key(recipe.getResult(), recipe.getIngredients());
+    MerchantRecipe offer = offers.get(key);
+    if (offer == null) {
+      offer =
+          new MerchantRecipe(
+              intern(key.result()),
+              /* uses= */ 0,
+              /* maxUses= */ Integer.MAX_VALUE,
+              /* experienceReward= */ false);
+      offer.setIngredients(key.ingredients());
+      offers.put(key, offer);
+    }
+    return offer;
+  }
+
+  /// Map villager recipes to their canonical infinite offers, dropping duplicates but otherwise
+  /// keeping the order in which they were first seen.
+  synchronized List<MerchantRecipe> canonicalize(Stream<MerchantRecipe> recipes) {
+    if (offers.size() > MAX_INTERNED_OFFERS) {
+      offers.clear();
+      stacks.clear();
+    }
+    Set<MerchantRecipe> canonical = new LinkedHashSet<>();
+    recipes.forEach(recipe -> canonical.add(intern(recipe)));
+    return List.copyOf(canonical);
+  }
+}
@@ -0,0 +1,413 @@
+package com.scottlinder.sane;
+
+import com.destroystokyo.paper.entity.ai.GoalKey;
+import com.destroystokyo.paper.entity.ai.MobGoals;
+import com.destroystokyo.paper.event.entity.EntityAddToWorldEvent;
+import com.destroystokyo.paper.event.entity.EntityRemoveFromWorldEvent;
+import io.papermc.paper.util.Tick;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import org.bukkit.GameMode;
+import org.bukkit.NamespacedKey;
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.attribute.Attribute;
+import org.bukkit.attribute.AttributeInstance;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.entity.Enemy;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.LivingEntity;
+import org.bukkit.entity.Mob;
+import org.bukkit.entity.Player;
+import org.bukkit.entity.Projectile;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.entity.EntityDamageByEntityEvent;
+import org.bukkit.event.entity.EntityTargetEvent;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.permissions.Permission;
+import org.bukkit.permissions.PermissionDefault;
+import org.bukkit.plugin.Plugin;
+
+/// Keeps hostile mobs off players with one of the pacifier permissions.
+///
+/// Each player's pacifier mode is resolved from their permissions once, on join, world change and
+/// every cleanup period, so the targeting hot path never has to consult the permissions plugin.
+///
+/// Cooldowns expire from a deadline queue, on the exact tick each one closes. Mobs that target a
+/// pacified player are tracked as they acquire the target, so expiry can de-aggro exactly those
+/// mobs without searching the area around the player.
+///
+/// In `goals` mode, every hostile mob also gets a {@link PacifierShield} goal, which keeps its
+/// target scans from running at all while pacified players are all it could target. The events are
+/// still handled as a backstop for players that come into range together, and shield any mob
+/// that was already loaded, or loaded while the pacifier was off, the first time it goes for a
+/// pacified player. Shields are left on while the pacifier is off, since with no player pacified
+/// they never activate, and on Folia a mob can only be touched from its own region's thread.
+///
+/// All state is safe to share between threads, since on Folia the events arrive on each region's
+/// thread while expiry runs on the global region.
+final class Pacifier implements Listener {
+
+  static final Permission PACIFIER_COMPLETE =
+      new Permission(
+          "sane.pacifier.complete",
+          "Player will never draw aggro from hostile mobs",
+          PermissionDefault.FALSE);
+  static final Permission PACIFIER_COOLDOWN =
+      new Permission(
+          "sane.pacifier.cooldown",
+          "Player will not draw aggro from hostile mobs except for during a brief"
+              + " cooldown after attacking one",
+          PermissionDefault.FALSE);
+  /// Vanilla's follow range for mobs without the attribute.
+  private static final double DEFAULT_FOLLOW_RANGE = 16;
+  private static final long PACIFIER_AGGRO_TICKS = Tick.tick().fromDuration(Duration.ofSeconds(10));
+  static final long PACIFIER_CLEANUP_PERIOD_TICKS =
+      Tick.tick().fromDuration(Duration.ofSeconds(1));
+
+  private record Deadline(long tick, UUID player) {}
+
+  enum Mode {
+    NONE,
+    COOLDOWN,
+    COMPLETE
+  }
+
+  private final Server server;
+  private final TaskScheduler scheduler;
+  private final Metrics metrics;
+  private final Predicate<World> enabledIn;
+
+  /// The key of the shield goal, or `null` outside `goals` mode.
+  private final GoalKey<Mob> shieldKey;
+
+  /// Pacifier mode by player entity ID; players without a pacifier permission are left out.
+  /// Replaced wholesale on every change, so readers never need a lock.
+  private volatile Int2ObjectOpenHashMap<Mode> modes = newModes();
+
+  private final AggroTimestamps playerLastDamageTick = new AggroTimestamps();
+  private final PriorityBlockingQueue<Deadline> deadlines =
+      new PriorityBlockingQueue<>(11, Comparator.comparingLong(Deadline::tick));
+  private final Map<UUID, Set<Mob>> targeters = new ConcurrentHashMap<>();
+  private final Map<Mob, UUID> targets = new ConcurrentHashMap<>();
+
+  /// Ticks since the plugin was enabled, advanced by {@link #expireAggro()}.
+  private final AtomicLong currentTick = new AtomicLong();
+
+  Pacifier(
+      Plugin plugin,
+      TaskScheduler scheduler,
+      Metrics metrics,
+      Predicate<World> enabledIn,
+      ConfigurationSection config) {
+    this.server = plugin.getServer();
+    this.scheduler = scheduler;
+    this.metrics = metrics;
+    this.enabledIn = enabledIn;
+    this.shieldKey =
+        "goals".equalsIgnoreCase(config.getString("mode"))
+            ? GoalKey.of(Mob.class, new NamespacedKey(plugin, "pacifier_shield"))
+            : null;
+    refreshModes();
+  }
+
+  private static Int2ObjectOpenHashMap<Mode> newModes() {
+    Int2ObjectOpenHashMap<Mode> modes = new Int2ObjectOpenHashMap<>();
+    modes.defaultReturnValue(Mode.NONE);
+    return modes;
+  }
+
+  // Players in worlds without the pacifier are left out like players without a permission.
+  private void putMode(Int2ObjectOpenHashMap<Mode> modes, Player player) {
+    Mode mode;
+    if (!enabledIn.test(player.getWorld())) mode = Mode.NONE;
+    else if (player.hasPermission(PACIFIER_COMPLETE)) mode = Mode.COMPLETE;
+    else if (player.hasPermission(PACIFIER_COOLDOWN)) mode = Mode.COOLDOWN;
+    else mode = Mode.NONE;
+    if (mode == Mode.NONE) modes.remove(player.getEntityId());
+    else modes.put(player.getEntityId(), mode);
+  }
+
+  private synchronized void refreshMode(Player player) {
+    Int2ObjectOpenHashMap<Mode> newModes = new Int2ObjectOpenHashMap<>(modes);
+    newModes.defaultReturnValue(Mode.NONE);
+    putMode(newModes, player);
+    modes = newModes;
+  }
+
+  private synchronized void forgetMode(Player player) {
+    Int2ObjectOpenHashMap<Mode> newModes = new Int2ObjectOpenHashMap<>(modes);
+    newModes.defaultReturnValue(Mode.NONE);
+    newModes.remove(player.getEntityId());
+    modes = newModes;
+  }
+
+  /// Re-resolve every online player's mode, picking up permission changes made since the last
+  /// refresh.
+  synchronized void refreshModes() {
+    Int2ObjectOpenHashMap<Mode> newModes = newModes();
+    for (Player player : server.getOnlinePlayers()) putMode(newModes, player);
+    modes = newModes;
+  }
+
+  Mode getMode(Player player) {
+    return modes.get(player.getEntityId());
+  }
+
+  private long getCurrentTick() {
+    return currentTick.get();
+  }
+
+  boolean canMobsAttack(Player player) {
+    switch (getMode(player)) {
+      case NONE:
+        return true;
+      case COMPLETE:
+        return false;
+      default:
+        break;
+    }
+    long lastDamageTick = playerLastDamageTick.get(player.getUniqueId());
+    long currentTick = getCurrentTick();
+    if (lastDamageTick == AggroTimestamps.NONE) return false;
+    return (currentTick - lastDamageTick) < PACIFIER_AGGRO_TICKS;
+  }
+
+  /// Whether `mob` has a pacified player in range and nothing else it might target: no player it
+  /// may attack, and no other creature that is not itself hostile, such as a villager or golem.
+  boolean isShielded(Mob mob) {
+    if (modes.isEmpty()) return false;
+    AttributeInstance followRange = mob.getAttribute(Attribute.FOLLOW_RANGE);
+    double range = followRange == null ? DEFAULT_FOLLOW_RANGE : followRange.getValue();
+    boolean pacified = false;
+    for (LivingEntity entity : mob.getWorld().getNearbyLivingEntities(mob.getLocation(), range)) {
+      if (!(entity instanceof Player player)) {
+        if (entity != mob && !(entity instanceof Enemy)) return false;
+        continue;
+      }
+      if (player.getGameMode() == GameMode.CREATIVE || player.getGameMode() == GameMode.SPECTATOR)
+        continue;
+      if (canMobsAttack(player)) return false;
+      pacified = true;
+    }
+    return pacified;
+  }
+
+  private void shield(Mob mob) {
+    MobGoals goals = server.getMobGoals();
+    if (!goals.hasGoal(mob, shieldKey))
+      goals.addGoal(mob, 0, new PacifierShield(this, mob, shieldKey));
+  }
+
+  /// Take the shield off every mob, so none keeps a goal from a disabled plugin.
+  void unshieldAll() {
+    if (shieldKey == null) return;
+    for (World world : server.getWorlds()) {
+      for (Mob mob : world.getEntitiesByClass(Mob.class))
+        server.getMobGoals().removeGoal(mob, shieldKey);
+    }
+  }
+
+  @EventHandler
+  public void onPlayerJoin(PlayerJoinEvent event) {
+    refreshMode(event.getPlayer());
+  }
+
+  @EventHandler
+  public void onPlayerChangedWorld(PlayerChangedWorldEvent event) {
+    Player player = event.getPlayer();
+    refreshMode(player);
+    // Mobs in the old world cannot follow, so there is nothing left to de-aggro.
+    playerLastDamageTick.remove(player.getUniqueId());
+    forgetTargeters(player.getUniqueId());
+  }
+
+  @EventHandler
+  public void onPlayerQuit(PlayerQuitEvent event) {
+    Player player = event.getPlayer();
+    forgetMode(player);
+    playerLastDamageTick.remove(player.getUniqueId());
+    forgetTargeters(player.getUniqueId());
+  }
+
+  private void forgetTargeters(UUID player) {
+    Set<Mob> mobs = targeters.remove(player);
+    if (mobs != null) targets.keySet().removeAll(mobs);
+  }
+
+  /// Forget every mob's target, for when the events keeping track of them stop coming.
+  void forgetTargets() {
+    targeters.clear();
+    targets.clear();
+  }
+
+  private void forgetTarget(Mob mob) {
+    UUID player = targets.remove(mob);
+    if (player == null) return;
+    Set<Mob> mobs = targeters.get(player);
+    if (mobs == null) return;
+    mobs.remove(mob);
+    if (mobs.isEmpty()) targeters.remove(player);
+  }
+
+  @EventHandler
+  public void onEntityTargetEvent(EntityTargetEvent targetEvent) {
+    long start = System.nanoTime();
+    try {
+      Entity entity = targetEvent.getEntity();
+      Entity target = targetEvent.getTarget();
+      if (entity instanceof Enemy enemy
+          && target instanceof Player player
+          && !canMobsAttack(player)) {
+        targetEvent.setCancelled(true);
+        if (shieldKey != null && entity instanceof Mob mob) shield(mob);
+        FlightEvents.PacifierTargetCancel event = new FlightEvents.PacifierTargetCancel();
+        if (event.shouldCommit()) {
+          event.setLocation(entity.getLocation());
+          event.mob = entity.getType().getKey().getKey();
+          event.player = player.getName();
+          event.commit();
+        }
+      }
+    } finally {
+      metrics.record(Metrics.Timer.ENTITY_TARGET, start);
+    }
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onEntityTargetMonitor(EntityTargetEvent targetEvent) {
+    if (!(targetEvent.getEntity() instanceof Enemy enemy && enemy instanceof Mob mob)) return;
+    forgetTarget(mob);
+    if (targetEvent.getTarget() instanceof Player player && getMode(player) != Mode.NONE) {
+      targets.put(mob, player.getUniqueId());
+      targeters.computeIfAbsent(player.getUniqueId(), p -> ConcurrentHashMap.newKeySet()).add(mob);
+    }
+  }
+
+  @EventHandler
+  public void onEntityAddToWorld(EntityAddToWorldEvent event) {
+    if (shieldKey != null && event.getEntity() instanceof Enemy enemy && enemy instanceof Mob mob)
+      shield(mob);
+  }
+
+  @EventHandler
+  public void onEntityRemoveFromWorld(EntityRemoveFromWorldEvent event) {
+    if (event.getEntity() instanceof Mob mob) forgetTarget(mob);
+  }
+
+  @EventHandler
+  public void onEntityDamageByEntityEvent(EntityDamageByEntityEvent damageEvent) {
+    long start = System.nanoTime();
+    try {
+      Entity entity = damageEvent.getEntity();
+      Entity damager = damageEvent.getDamager();
+      if (damager instanceof Projectile projectile) {
+        if (projectile.getShooter() instanceof Entity e) {
+          damager = e;
+        } else {
+          return;
+        }
+      }
+      if (damager instanceof Player player
+          && entity instanceof Enemy enemy
+          && getMode(player) == Mode.COOLDOWN) {
+        long currentTick = getCurrentTick();
+        UUID playerId = player.getUniqueId();
+        if (playerLastDamageTick.get(playerId) == AggroTimestamps.NONE)
+          deadlines.add(new Deadline(currentTick + PACIFIER_AGGRO_TICKS, playerId));
+        playerLastDamageTick.put(playerId, currentTick);
+      } else if (damager instanceof Enemy enemy
+          && enemy instanceof Mob mob
+          && entity instanceof Player player
+          && !canMobsAttack(player)) {
+        mob.setTarget(null);
+      }
+    } finally {
+      metrics.record(Metrics.Timer.ENTITY_DAMAGE_BY_ENTITY, start);
+    }
+  }
+
+  /// Refresh pacifier modes and drop state belonging to players who are no longer online.
+  void doPacifierCleanup() {
+    long start = System.nanoTime();
+    FlightEvents.PacifierCleanup event = new FlightEvents.PacifierCleanup();
+    event.begin();
+    try {
+      refreshModes();
+      Set<UUID> forgotten = new HashSet<>();
+      for (UUID playerId : playerLastDamageTick.players()) {
+        if (server.getPlayer(playerId) == null) {
+          playerLastDamageTick.remove(playerId);
+          forgotten.add(playerId);
+        }
+      }
+      for (UUID playerId : targeters.keySet()) {
+        if (server.getPlayer(playerId) == null) forgotten.add(playerId);
+      }
+      targeters.keySet().removeAll(forgotten);
+      int targetCount = targets.size();
+      targets.values().removeIf(playerId -> !targeters.containsKey(playerId));
+      if (event.shouldCommit()) {
+        event.players = forgotten.size();
+        event.mobs = targetCount - targets.size();
+        event.commit();
+      }
+    } finally {
+      metrics.record(Metrics.Timer.PACIFIER_CLEANUP, start);
+    }
+  }
+
+  /// Advance the pacifier clock and expire every cooldown whose aggro window has closed,
+  /// de-aggroing the mobs targeting those players. Runs every tick, but only does work on expiry
+  /// ticks.
+  void expireAggro() {
+    long currentTick = this.currentTick.incrementAndGet();
+    for (Deadline deadline = deadlines.peek();
+        deadline != null && deadline.tick() <= currentTick;
+        deadline = deadlines.peek()) {
+      deadlines.poll();
+      UUID playerId = deadline.player();
+      long lastDamageTick = playerLastDamageTick.get(playerId);
+      if (lastDamageTick == AggroTimestamps.NONE) continue;
+      // Damage since the deadline was queued extends the window instead of queueing again.
+      long tick = lastDamageTick + PACIFIER_AGGRO_TICKS;
+      if (tick > currentTick) {
+        deadlines.add(new Deadline(tick, playerId));
+        continue;
+      }
+      playerLastDamageTick.remove(playerId);
+      Player player = server.getPlayer(playerId);
+      if (player == null || canMobsAttack(player)) continue;
+      Set<Mob> mobs = targeters.remove(playerId);
+      if (mobs == null) continue;
+      FlightEvents.PacifierDeaggro event = new FlightEvents.PacifierDeaggro();
+      if (event.shouldCommit()) {
+        event.setLocation(player.getLocation());
+        event.player = player.getName();
+        event.mobs = mobs.size();
+        event.commit();
+      }
+      for (Mob mob : mobs) {
+        targets.remove(mob);
+        scheduler.execute(
+            mob,
+            () -> {
+              if (mob.isValid() && mob.getTarget() == player) mob.setTarget(null);
+            });
+      }
+    }
+  }
+}
@@ -0,0 +1,64 @@
+package com.scottlinder.sane;
+
+import com.destroystokyo.paper.entity.ai.Goal;
+import com.destroystokyo.paper.entity.ai.GoalKey;
+import com.destroystokyo.paper.entity.ai.GoalType;
+import java.util.EnumSet;
+import java.util.concurrent.ThreadLocalRandom;
+import org.bukkit.entity.Mob;
+import org.bukkit.entity.Player;
+
+/// A top-priority target goal that does nothing but hold the mob's target slot while the only
+/// things in range it could target are pacified players.
+///
+/// Vanilla only runs a target goal when no higher-priority one holds the slot, so while the
+/// shield is up the mob's own target scans never run and never raise target events for pacified
+/// players. It never holds while anything else the mob might go for is in range, be it a player
+/// it may attack or a villager, so the mob targets those exactly as it would without the shield.
+///
+/// Like vanilla's target scans, the shield only looks around every [#RECHECK_INTERVAL] goal
+/// evaluations on average, at a random offset so that a crowd of mobs spreads its scans out, and
+/// keeps its last answer in between.
+final class PacifierShield implements Goal<Mob> {
+
+  private static final int RECHECK_INTERVAL = 10;
+
+  private final Pacifier pacifier;
+  private final Mob mob;
+  private final GoalKey<Mob> key;
+  private int recheckDelay;
+  private boolean shielded;
+
+  PacifierShield(Pacifier pacifier, Mob mob, GoalKey<Mob> key) {
+    this.pacifier = pacifier;
+    this.mob = mob;
+    this.key = key;
+  }
+
+  @Override
+  public boolean shouldActivate() {
+    if (recheckDelay > 0) {
+      recheckDelay--;
+      return shielded;
+    }
+    recheckDelay = ThreadLocalRandom.current().nextInt(2 * RECHECK_INTERVAL);
+    shielded = pacifier.isShielded(mob);
+    return shielded;
+  }
+
+  @Override
+  public void start() {
+    if (mob.getTarget() instanceof Player player && !pacifier.canMobsAttack(player))
+      mob.setTarget(null);
+  }
+
+  @Override
+  public GoalKey<Mob> getKey() {
+    return key;
+  }
+
+  @Override
+  public EnumSet<GoalType> getTypes() {
+    return EnumSet.of(GoalType.TARGET);
+  }
+}
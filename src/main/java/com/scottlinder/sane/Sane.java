@@ -1,590 +1,241 @@
 package com.scottlinder.sane;
 
+import com.scottlinder.sane.FeatureToggles.Feature;
 import io.papermc.paper.util.Tick;
-import java.text.MessageFormat;
+import java.io.IOException;
 import java.time.Duration;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
-import net.kyori.adventure.text.Component;
-import net.kyori.adventure.text.TextComponent;
-import net.kyori.adventure.text.format.NamedTextColor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
 import org.bukkit.*;
-import org.bukkit.Bukkit;
-import org.bukkit.block.Block;
-import org.bukkit.block.data.BlockData;
-import org.bukkit.enchantments.Enchantment;
-import org.bukkit.entity.Enemy;
-import org.bukkit.entity.Entity;
-import org.bukkit.entity.EntityType;
-import org.bukkit.entity.Mob;
-import org.bukkit.entity.Player;
-import org.bukkit.entity.Projectile;
 import org.bukkit.entity.Villager;
-import org.bukkit.event.EventHandler;
-import org.bukkit.event.Listener;
-import org.bukkit.event.block.Action;
-import org.bukkit.event.entity.EntityDamageByEntityEvent;
-import org.bukkit.event.entity.EntityTargetEvent;
-import org.bukkit.event.entity.VillagerCareerChangeEvent;
-import org.bukkit.event.player.PlayerInteractEntityEvent;
-import org.bukkit.event.player.PlayerInteractEvent;
 import org.bukkit.inventory.*;
-import org.bukkit.inventory.RecipeChoice.MaterialChoice;
-import org.bukkit.inventory.meta.EnchantmentStorageMeta;
-import org.bukkit.inventory.view.*;
-import org.bukkit.permissions.Permission;
-import org.bukkit.permissions.PermissionDefault;
 import org.bukkit.plugin.PluginManager;
 import org.bukkit.plugin.java.JavaPlugin;
 
-public final class Sane extends JavaPlugin implements Listener {
+public final class Sane extends JavaPlugin {
 
-  private static final Material TRADE_REFRESH_MATERIAL = Material.EMERALD;
+  static final Material TRADE_REFRESH_MATERIAL = Material.EMERALD;
   private static final int TRADE_REFRESH_AMOUNT_PER_LEVEL = 8;
 
-  private static final String ERROR_LEVEL_ONE =
-      "You cannot bribe a villager into refreshing their level-1 trades!";
-  private static final String ERROR_MUST_HOLD =
-      "You must be holding {0} to bribe this villager into refreshing their non-level-1"
-          + " trades!";
-  private static final String ERROR_NOT_ENOUGH =
-      "You must have {0} {1} to bribe this villager into refreshing their non-level-1" + " trades!";
-  private static final String SUCCESS_YOU_SPENT =
-      "The villager accepted your bribe of {0} {1} and refreshed their non-level-1 trades!";
+  static final int TOWN_DIM_X = 250;
+  static final int TOWN_DIM_Y = 50;
+  static final int TOWN_DIM_Z = 250;
 
-  private static final int TOWN_DIM_X = 250;
-  private static final int TOWN_DIM_Y = 50;
-  private static final int TOWN_DIM_Z = 250;
+  private static final long VILLAGER_REBUCKET_PERIOD_TICKS =
+      Tick.tick().fromDuration(Duration.ofSeconds(5));
 
-  private static final Permission PACIFIER_COMPLETE =
-      new Permission(
-          "sane.pacifier.complete",
-          "Player will never draw aggro from hostile mobs",
-          PermissionDefault.FALSE);
-  private static final Permission PACIFIER_COOLDOWN =
-      new Permission(
-          "sane.pacifier.cooldown",
-          "Player will not draw aggro from hostile mobs except for during a brief"
-              + " cooldown after attacking one",
-          PermissionDefault.FALSE);
-  private static final long PACIFIER_AGGRO_TICKS = Tick.tick().fromDuration(Duration.ofSeconds(10));
-  private static final long PACIFIER_CLEANUP_PERIOD_TICKS =
-      Tick.tick().fromDuration(Duration.ofSeconds(1));
+  private static final String TRADE_STORE_DIRECTORY = "trades";
+
+  private static final long STATS_DUMP_PERIOD_TICKS =
+      Tick.tick().fromDuration(Duration.ofMinutes(5));
 
   private Server server;
-  private BlockData airData;
-  private Map<Player, Long> playerLastDamageTick;
+  private TaskScheduler scheduler;
+  private ExecutorService workers;
+  private VillagerIndex villagerIndex;
+  private TradingPost tradingPost;
+  private Pacifier pacifier;
+  private CareerAnnouncer careerAnnouncer;
+  private WorkstationReset workstationReset;
+  private Metrics metrics;
+  private TradeStore tradeStore;
+  private TradeIndex tradeIndex;
+  private LoadGovernor loadGovernor;
+  private BulkRefresh bulkRefresh;
+  private SaneCommand saneCommand;
+  private FeatureToggles features;
 
   @Override
   public void onEnable() {
     server = getServer();
-    airData = server.createBlockData(Material.AIR);
-    playerLastDamageTick = new HashMap<Player, Long>();
+    saveDefaultConfig();
+    scheduler = new TaskScheduler(this);
+    workers = Executors.newVirtualThreadPerTaskExecutor();
+    metrics = new Metrics();
+    features = new FeatureToggles(this);
+    loadGovernor =
+        new LoadGovernor(getLogger(), getConfig().getConfigurationSection("load-governor"));
+    villagerIndex = new VillagerIndex();
+    for (World world : server.getWorlds()) villagerIndex.addAll(world);
+    if (getConfig().getBoolean("trade-store.enabled")) {
+      tradeStore =
+          new TradeStore(
+              getDataFolder().toPath().resolve(TRADE_STORE_DIRECTORY), scheduler, getLogger());
+      try {
+        tradeStore.open();
+      } catch (IOException e) {
+        getLogger().log(Level.WARNING, "Failed to open the trade store, leaving it off", e);
+        tradeStore = null;
+      }
+    }
+    tradeIndex = new TradeIndex(scheduler);
+    for (Villager villager : villagerIndex.getVillagers()) tradeIndex.index(villager);
+    if (tradeStore != null) {
+      TradeStore store = tradeStore;
+      workers.execute(() -> tradeIndex.seed(store));
+    }
+    tradingPost =
+        new TradingPost(
+            scheduler,
+            workers,
+            getLogger(),
+            villagerIndex,
+            metrics,
+            loadGovernor,
+            features.enabledIn(Feature.TRADING_POST),
+            tradeStore,
+            getConfig().getConfigurationSection("trading-post"));
+    features.add(Feature.TRADING_POST, tradingPost);
+    // Its snapshots may have missed villager changes while it was off.
+    features.onApply(Feature.TRADING_POST, enabled -> tradingPost.invalidateAll());
     PluginManager pluginManager = server.getPluginManager();
-    pluginManager.registerEvents(this, this);
-    pluginManager.addPermission(PACIFIER_COMPLETE);
-    pluginManager.addPermission(PACIFIER_COOLDOWN);
-    addReverseRecipes();
-    addVeganRecipes();
-    server
-        .getScheduler()
-        .runTaskTimer(
+    pluginManager.addPermission(Pacifier.PACIFIER_COMPLETE);
+    pluginManager.addPermission(Pacifier.PACIFIER_COOLDOWN);
+    pluginManager.addPermission(SaneCommand.ADMIN);
+    pluginManager.addPermission(SaneCommand.REFRESH);
+    pluginManager.addPermission(SaneCommand.FIND);
+    pacifier =
+        new Pacifier(
             this,
-            this::doPacifierCleanup,
-            PACIFIER_CLEANUP_PERIOD_TICKS,
-            PACIFIER_CLEANUP_PERIOD_TICKS);
-  }
-
-  private static MerchantRecipe getInfiniteRecipe(MerchantRecipe recipe) {
-    MerchantRecipe mr =
-        new MerchantRecipe(
-            recipe.getResult(),
-            /* uses= */ 0,
-            /* maxUses= */ Integer.MAX_VALUE,
-            /* experienceReward= */ false);
-    recipe.getIngredients().forEach(mr::addIngredient);
-    return mr;
-  }
-
-  private static Stream<MerchantRecipe> getVillagerRecipes(Villager villager) {
-    return villager.getRecipes().stream().map(Sane::getInfiniteRecipe);
+            scheduler,
+            metrics,
+            features.enabledIn(Feature.PACIFIER),
+            getConfig().getConfigurationSection("pacifier"));
+    features.add(Feature.PACIFIER, pacifier);
+    // This may run on any thread, so it leaves the mobs themselves alone.
+    features.onApply(
+        Feature.PACIFIER,
+        enabled -> {
+          pacifier.refreshModes();
+          if (!enabled) pacifier.forgetTargets();
+        });
+    careerAnnouncer =
+        new CareerAnnouncer(
+            scheduler,
+            villagerIndex,
+            metrics,
+            loadGovernor,
+            features.enabledIn(Feature.CAREER_ANNOUNCEMENTS),
+            getConfig().getLong("career-announcements.batch-ticks"));
+    features.add(Feature.CAREER_ANNOUNCEMENTS, careerAnnouncer);
+    workstationReset =
+        new WorkstationReset(
+            scheduler,
+            villagerIndex,
+            careerAnnouncer,
+            metrics,
+            loadGovernor,
+            features.enabledIn(Feature.WORKSTATION_RESET),
+            getConfig().getConfigurationSection("workstation-reset"));
+    features.add(Feature.WORKSTATION_RESET, workstationReset);
+    bulkRefresh =
+        new BulkRefresh(
+            scheduler,
+            villagerIndex,
+            metrics,
+            this::refreshTrades,
+            getDataFolder(),
+            getLogger(),
+            getConfig().getConfigurationSection("bulk-refresh"));
+    features.add(
+        Feature.BRIBE,
+        new Bribe(
+            features.enabledIn(Feature.BRIBE),
+            metrics,
+            loadGovernor,
+            bulkRefresh,
+            this::refreshTrades));
+    saneCommand =
+        new SaneCommand(
+            metrics,
+            bulkRefresh,
+            tradeIndex,
+            tradingPost,
+            features,
+            getDataFolder(),
+            workers,
+            getLogger());
+    getCommand("sane").setExecutor(saneCommand);
+    pluginManager.registerEvents(villagerIndex, this);
+    pluginManager.registerEvents(tradeIndex, this);
+    pluginManager.registerEvents(tradingPost.getIndexGuard(), this);
+    pluginManager.registerEvents(bulkRefresh, this);
+    if (tradeStore != null) pluginManager.registerEvents(tradeStore, this);
+    CustomRecipes customRecipes = new CustomRecipes(this);
+    if ("dynamic".equalsIgnoreCase(getConfig().getString("crafting.mode"))) {
+      features.add(
+          Feature.RECIPES, customRecipes.createMatcher(features.enabledIn(Feature.RECIPES)));
+    } else {
+      features.onApply(
+          Feature.RECIPES,
+          enabled -> {
+            if (enabled) customRecipes.register();
+            else customRecipes.unregister();
+          });
+    }
+    features.apply(getConfig().getConfigurationSection("features"));
+    scheduler.runTimer(
+        loadGovernor.stretch(
+            () -> {
+              pacifier.doPacifierCleanup();
+              tradingPost.forgetExpiredSnapshots();
+            }),
+        Pacifier.PACIFIER_CLEANUP_PERIOD_TICKS,
+        Pacifier.PACIFIER_CLEANUP_PERIOD_TICKS);
+    scheduler.runTimer(pacifier::expireAggro, 1L, 1L);
+    scheduler.runTimer(
+        () -> villagerIndex.rebucket(scheduler),
+        VILLAGER_REBUCKET_PERIOD_TICKS,
+        VILLAGER_REBUCKET_PERIOD_TICKS);
+    scheduler.runTimer(saneCommand::dumpStats, STATS_DUMP_PERIOD_TICKS, STATS_DUMP_PERIOD_TICKS);
+    long governorTicks = Math.max(1, getConfig().getLong("load-governor.check-ticks"));
+    scheduler.runTimer(loadGovernor::check, governorTicks, governorTicks);
   }
 
-  private List<MerchantRecipe> getTownRecipes(Location location) {
-    return location
-        .getWorld()
-        .getNearbyEntities(location, TOWN_DIM_X, TOWN_DIM_Y, TOWN_DIM_Z)
-        .stream()
-        .filter(e -> e.getType() == EntityType.VILLAGER)
-        .map(e -> (Villager) e)
-        .flatMap(Sane::getVillagerRecipes)
-        .toList();
+  @Override
+  public void onDisable() {
+    if (saneCommand != null) saneCommand.writeStats();
+    if (bulkRefresh != null) bulkRefresh.saveRefunds();
+    if (pacifier != null) pacifier.unshieldAll();
+    if (tradeStore != null) tradeStore.close(villagerIndex.getVillagers());
+    if (workers != null) workers.shutdownNow();
   }
 
-  @EventHandler
-  public void onPlayerInteract(PlayerInteractEvent event) {
-    if (event.getAction() != Action.RIGHT_CLICK_BLOCK) return;
-    Player player = event.getPlayer();
-    Block block = event.getClickedBlock();
-    if (!player.isSneaking() || block == null) return;
-    boolean shouldCancel = true;
-    switch (block.getType()) {
-      default:
-        {
-          shouldCancel = false;
-          break;
-        }
-      case BELL:
-        {
-          Bukkit.getScheduler()
-              .runTask(
-                  this,
-                  () -> {
-                    MerchantView merchantView =
-                        MenuType.MERCHANT.create(player, Component.text("Trading Post"));
-                    merchantView.getMerchant().setRecipes(getTownRecipes(block.getLocation()));
-                    player.openInventory(merchantView);
-                  });
-          break;
-        }
-      case BARREL:
-      case BLAST_FURNACE:
-      case BREWING_STAND:
-      case CARTOGRAPHY_TABLE:
-      case CAULDRON:
-      case COMPOSTER:
-      case FLETCHING_TABLE:
-      case GRINDSTONE:
-      case LECTERN:
-      case LOOM:
-      case SMITHING_TABLE:
-      case SMOKER:
-      case STONECUTTER:
-        {
-          BlockData origBlockData = block.getBlockData();
-          Bukkit.getScheduler()
-              .runTask(
-                  this,
-                  () -> {
-                    block.setBlockData(airData);
-                    Bukkit.getScheduler()
-                        .runTaskLater(
-                            this,
-                            () -> {
-                              // TODO: turn to item if block is no
-                              // longer air?
-                              block.setBlockData(origBlockData);
-                            },
-                            2L);
-                  });
-          break;
-        }
-    }
-    event.setCancelled(shouldCancel);
+  /// The bribe for refreshing the trades of a villager at `level`.
+  static int getRefreshCost(int level) {
+    return TRADE_REFRESH_AMOUNT_PER_LEVEL * (level - 1);
   }
 
-  @EventHandler
-  public void onPlayerInteractEntity(PlayerInteractEntityEvent event) {
-    Player player = event.getPlayer();
-    PlayerInventory inventory = player.getInventory();
-    Entity entity = event.getRightClicked();
-    if (!player.isSneaking() || entity.getType() != EntityType.VILLAGER) return;
-    Villager villager = (Villager) entity;
+  /// Reroll every trade of `villager` above level 1, keeping its level. Must run on the
+  /// villager's thread.
+  void refreshTrades(Villager villager) {
+    FlightEvents.BribeRefresh event = new FlightEvents.BribeRefresh();
+    event.begin();
     int level = villager.getVillagerLevel();
-    if (level == 1) {
-      player.sendMessage(Component.text(ERROR_LEVEL_ONE));
-      event.setCancelled(true);
-      return;
-    }
-    if (inventory.getItemInMainHand().getType() != TRADE_REFRESH_MATERIAL) {
-      player.sendMessage(
-          Component.text(MessageFormat.format(ERROR_MUST_HOLD, TRADE_REFRESH_MATERIAL.name())));
-      event.setCancelled(true);
-      return;
-    }
-    int tradeRefreshAmount = TRADE_REFRESH_AMOUNT_PER_LEVEL * (level - 1);
-    if (!inventory.contains(TRADE_REFRESH_MATERIAL, tradeRefreshAmount)) {
-      player.sendMessage(
-          Component.text(
-              MessageFormat.format(
-                  ERROR_NOT_ENOUGH, tradeRefreshAmount, TRADE_REFRESH_MATERIAL.name())));
-      event.setCancelled(true);
-      return;
-    }
-    player.sendMessage(
-        Component.text(
-            MessageFormat.format(
-                SUCCESS_YOU_SPENT, tradeRefreshAmount, TRADE_REFRESH_MATERIAL.name())));
-    inventory.removeItemAnySlot(new ItemStack(TRADE_REFRESH_MATERIAL, tradeRefreshAmount));
     villager.setVillagerLevel(1);
     ArrayList<MerchantRecipe> levelOneRecipes = new ArrayList<>();
     levelOneRecipes.add(villager.getRecipe(0));
     levelOneRecipes.add(villager.getRecipe(1));
     villager.setRecipes(levelOneRecipes);
     villager.increaseLevel(level - 1);
-  }
-
-  private static String cleanKey(NamespacedKey key) {
-    return key.getKey().replace('_', ' ');
-  }
-
-  private static String formatEnchantments(Map<Enchantment, Integer> enchantments) {
-    return enchantments.entrySet().stream()
-        .map((e) -> "[%s:%d]".formatted(cleanKey(e.getKey().getKey()), e.getValue()))
-        .collect(Collectors.joining());
-  }
-
-  @EventHandler
-  public void onVillagerCareerChangeEvent(VillagerCareerChangeEvent event) {
-    if (event.getReason() != VillagerCareerChangeEvent.ChangeReason.EMPLOYED) return;
-    Villager villager = event.getEntity();
-    Bukkit.getScheduler()
-        .runTask(
-            this,
-            () -> {
-              if (!villager.isValid()) return;
-              String profession = cleanKey(villager.getProfession().getKey());
-              List<String> newRecipes =
-                  villager.getRecipes().stream()
-                      .map(Recipe::getResult)
-                      .map(
-                          (ItemStack stack) -> {
-                            String itemName = cleanKey(stack.getType().getKey());
-                            String enchantments = formatEnchantments(stack.getEnchantments());
-                            if (stack.getItemMeta()
-                                instanceof EnchantmentStorageMeta enchantmentStorageMeta)
-                              enchantments +=
-                                  formatEnchantments(enchantmentStorageMeta.getStoredEnchants());
-                            return "%s%s".formatted(itemName, enchantments);
-                          })
-                      .toList();
-              TextComponent.Builder component =
-                  Component.text()
-                      .append(Component.text(profession, NamedTextColor.GREEN))
-                      .append(Component.text(" now sells: ", NamedTextColor.WHITE));
-              for (String newRecipe : newRecipes) {
-                component
-                    .append(Component.text(newRecipe, NamedTextColor.GREEN))
-                    .append(Component.text("; ", NamedTextColor.WHITE));
-              }
-              for (Player nearbyPlayer :
-                  villager.getLocation().getNearbyPlayers(TOWN_DIM_X, TOWN_DIM_Y, TOWN_DIM_Z))
-                nearbyPlayer.sendMessage(component);
-            });
-  }
-
-  /// A keyed "RecipeIngredient", with a very compact name as it appears in
-  /// argument lists.
-  private static class RI {
-    char key;
-    Object o;
-
-    public RI(char key, Object o) {
-      this.key = key;
-      this.o = o;
-    }
-
-    public void setIn(ShapedRecipe r) {
-      if (o instanceof Material m) r.setIngredient(key, m);
-      else if (o instanceof RecipeChoice m) r.setIngredient(key, m);
-      else throw new RuntimeException("Unhandled recipe ingredient type");
-    }
-  }
-
-  private void addRecipe(
-      String key,
-      Material material,
-      int count,
-      String shapeTop,
-      String shapeMid,
-      String shapeBot,
-      Set<RI> ingredients) {
-    ShapedRecipe recipe =
-        new ShapedRecipe(new NamespacedKey(this, key), new ItemStack(material, count));
-    recipe.shape(shapeTop, shapeMid, shapeBot);
-    for (var i : ingredients) i.setIn(recipe);
-    server.addRecipe(recipe);
-  }
-
-  private void addReverseSlabRecipe(Material fullMat, Material slabMat) {
-    addRecipe(
-        "reverse_slab_%s_%s".formatted(slabMat, fullMat),
-        fullMat,
-        3,
-        "   ",
-        "AAA",
-        "AAA",
-        Set.of(new RI('A', slabMat)));
-  }
-
-  private void addReverseSlabRecipes() {
-    // addReverseSlabRecipe(Material.TUFF, Material.TUFF_SLAB);
-    // addReverseSlabRecipe(Material.POLISHED_TUFF, Material.POLISHED_TUFF_SLAB);
-    // addReverseSlabRecipe(Material.TUFF_BRICKS, Material.TUFF_BRICK_SLAB);
-    addReverseSlabRecipe(Material.CUT_COPPER, Material.CUT_COPPER_SLAB);
-    addReverseSlabRecipe(Material.EXPOSED_CUT_COPPER, Material.EXPOSED_CUT_COPPER_SLAB);
-    addReverseSlabRecipe(Material.WEATHERED_CUT_COPPER, Material.WEATHERED_CUT_COPPER_SLAB);
-    addReverseSlabRecipe(Material.OXIDIZED_CUT_COPPER, Material.OXIDIZED_CUT_COPPER_SLAB);
-    addReverseSlabRecipe(Material.WAXED_CUT_COPPER, Material.WAXED_CUT_COPPER_SLAB);
-    addReverseSlabRecipe(Material.WAXED_EXPOSED_CUT_COPPER, Material.WAXED_EXPOSED_CUT_COPPER_SLAB);
-    addReverseSlabRecipe(
-        Material.WAXED_WEATHERED_CUT_COPPER, Material.WAXED_WEATHERED_CUT_COPPER_SLAB);
-    addReverseSlabRecipe(
-        Material.WAXED_OXIDIZED_CUT_COPPER, Material.WAXED_OXIDIZED_CUT_COPPER_SLAB);
-    addReverseSlabRecipe(Material.OAK_PLANKS, Material.OAK_SLAB);
-    addReverseSlabRecipe(Material.SPRUCE_PLANKS, Material.SPRUCE_SLAB);
-    addReverseSlabRecipe(Material.BIRCH_PLANKS, Material.BIRCH_SLAB);
-    addReverseSlabRecipe(Material.JUNGLE_PLANKS, Material.JUNGLE_SLAB);
-    addReverseSlabRecipe(Material.ACACIA_PLANKS, Material.ACACIA_SLAB);
-    addReverseSlabRecipe(Material.CHERRY_PLANKS, Material.CHERRY_SLAB);
-    addReverseSlabRecipe(Material.DARK_OAK_PLANKS, Material.DARK_OAK_SLAB);
-    addReverseSlabRecipe(Material.MANGROVE_PLANKS, Material.MANGROVE_SLAB);
-    addReverseSlabRecipe(Material.BAMBOO_PLANKS, Material.BAMBOO_SLAB);
-    addReverseSlabRecipe(Material.BAMBOO_MOSAIC, Material.BAMBOO_MOSAIC_SLAB);
-    addReverseSlabRecipe(Material.CRIMSON_PLANKS, Material.CRIMSON_SLAB);
-    addReverseSlabRecipe(Material.WARPED_PLANKS, Material.WARPED_SLAB);
-    addReverseSlabRecipe(Material.STONE, Material.STONE_SLAB);
-    addReverseSlabRecipe(Material.SMOOTH_STONE, Material.SMOOTH_STONE_SLAB);
-    addReverseSlabRecipe(Material.SANDSTONE, Material.SANDSTONE_SLAB);
-    addReverseSlabRecipe(Material.CUT_SANDSTONE, Material.CUT_SANDSTONE_SLAB);
-    addReverseSlabRecipe(Material.COBBLESTONE, Material.COBBLESTONE_SLAB);
-    addReverseSlabRecipe(Material.BRICK, Material.BRICK_SLAB);
-    addReverseSlabRecipe(Material.STONE_BRICKS, Material.STONE_BRICK_SLAB);
-    addReverseSlabRecipe(Material.MUD_BRICKS, Material.MUD_BRICK_SLAB);
-    addReverseSlabRecipe(Material.NETHER_BRICKS, Material.NETHER_BRICK_SLAB);
-    addReverseSlabRecipe(Material.QUARTZ_PILLAR, Material.QUARTZ_SLAB);
-    addReverseSlabRecipe(Material.RED_SANDSTONE, Material.RED_SANDSTONE_SLAB);
-    addReverseSlabRecipe(Material.CUT_RED_SANDSTONE, Material.CUT_RED_SANDSTONE_SLAB);
-    addReverseSlabRecipe(Material.PURPUR_BLOCK, Material.PURPUR_SLAB);
-    addReverseSlabRecipe(Material.PRISMARINE, Material.PRISMARINE_SLAB);
-    addReverseSlabRecipe(Material.PRISMARINE_BRICKS, Material.PRISMARINE_BRICK_SLAB);
-    addReverseSlabRecipe(Material.DARK_PRISMARINE, Material.DARK_PRISMARINE_SLAB);
-    addReverseSlabRecipe(Material.POLISHED_GRANITE, Material.POLISHED_GRANITE_SLAB);
-    addReverseSlabRecipe(Material.SMOOTH_RED_SANDSTONE, Material.SMOOTH_RED_SANDSTONE_SLAB);
-    addReverseSlabRecipe(Material.MOSSY_STONE_BRICKS, Material.MOSSY_STONE_BRICK_SLAB);
-    addReverseSlabRecipe(Material.POLISHED_DIORITE, Material.POLISHED_DIORITE_SLAB);
-    addReverseSlabRecipe(Material.MOSSY_COBBLESTONE, Material.MOSSY_COBBLESTONE_SLAB);
-    addReverseSlabRecipe(Material.END_STONE_BRICKS, Material.END_STONE_BRICK_SLAB);
-    addReverseSlabRecipe(Material.SMOOTH_SANDSTONE, Material.SMOOTH_SANDSTONE_SLAB);
-    addReverseSlabRecipe(Material.SMOOTH_QUARTZ, Material.SMOOTH_QUARTZ_SLAB);
-    addReverseSlabRecipe(Material.GRANITE, Material.GRANITE_SLAB);
-    addReverseSlabRecipe(Material.ANDESITE, Material.ANDESITE_SLAB);
-    addReverseSlabRecipe(Material.RED_NETHER_BRICKS, Material.RED_NETHER_BRICK_SLAB);
-    addReverseSlabRecipe(Material.POLISHED_ANDESITE, Material.POLISHED_ANDESITE_SLAB);
-    addReverseSlabRecipe(Material.DIORITE, Material.DIORITE_SLAB);
-    addReverseSlabRecipe(Material.COBBLED_DEEPSLATE, Material.COBBLED_DEEPSLATE_SLAB);
-    addReverseSlabRecipe(Material.POLISHED_DEEPSLATE, Material.POLISHED_DEEPSLATE_SLAB);
-    addReverseSlabRecipe(Material.DEEPSLATE_BRICKS, Material.DEEPSLATE_BRICK_SLAB);
-    addReverseSlabRecipe(Material.DEEPSLATE_TILES, Material.DEEPSLATE_TILE_SLAB);
-    addReverseSlabRecipe(Material.BLACKSTONE, Material.BLACKSTONE_SLAB);
-    addReverseSlabRecipe(Material.POLISHED_BLACKSTONE, Material.POLISHED_BLACKSTONE_SLAB);
-    addReverseSlabRecipe(
-        Material.POLISHED_BLACKSTONE_BRICKS, Material.POLISHED_BLACKSTONE_BRICK_SLAB);
-  }
-
-  private void addReverseStairsRecipe(Material fullMat, Material stairsMat) {
-    addRecipe(
-        "reverse_stairs_%s_%s".formatted(stairsMat, fullMat),
-        fullMat,
-        6,
-        "   ",
-        "AA ",
-        "AA ",
-        Set.of(new RI('A', stairsMat)));
-  }
-
-  private void addReverseStairsRecipes() {
-    // addReverseStairsRecipe(Material.TUFF, Material.TUFF_STAIRS);
-    // addReverseStairsRecipe(Material.POLISHED_TUFF, Material.POLISHED_TUFF_STAIRS);
-    // addReverseStairsRecipe(Material.TUFF_BRICKS, Material.TUFF_BRICK_STAIRS);
-    addReverseStairsRecipe(Material.CUT_COPPER, Material.CUT_COPPER_STAIRS);
-    addReverseStairsRecipe(Material.EXPOSED_CUT_COPPER, Material.EXPOSED_CUT_COPPER_STAIRS);
-    addReverseStairsRecipe(Material.WEATHERED_CUT_COPPER, Material.WEATHERED_CUT_COPPER_STAIRS);
-    addReverseStairsRecipe(Material.OXIDIZED_CUT_COPPER, Material.OXIDIZED_CUT_COPPER_STAIRS);
-    addReverseStairsRecipe(Material.WAXED_CUT_COPPER, Material.WAXED_CUT_COPPER_STAIRS);
-    addReverseStairsRecipe(
-        Material.WAXED_EXPOSED_CUT_COPPER, Material.WAXED_EXPOSED_CUT_COPPER_STAIRS);
-    addReverseStairsRecipe(
-        Material.WAXED_WEATHERED_CUT_COPPER, Material.WAXED_WEATHERED_CUT_COPPER_STAIRS);
-    addReverseStairsRecipe(
-        Material.WAXED_OXIDIZED_CUT_COPPER, Material.WAXED_OXIDIZED_CUT_COPPER_STAIRS);
-    addReverseStairsRecipe(Material.PURPUR_BLOCK, Material.PURPUR_STAIRS);
-    addReverseStairsRecipe(Material.COBBLESTONE, Material.COBBLESTONE_STAIRS);
-    addReverseStairsRecipe(Material.BRICKS, Material.BRICK_STAIRS);
-    addReverseStairsRecipe(Material.STONE_BRICKS, Material.STONE_BRICK_STAIRS);
-    addReverseStairsRecipe(Material.MUD_BRICKS, Material.MUD_BRICK_STAIRS);
-    addReverseStairsRecipe(Material.NETHER_BRICKS, Material.NETHER_BRICK_STAIRS);
-    addReverseStairsRecipe(Material.SANDSTONE, Material.SANDSTONE_STAIRS);
-    addReverseStairsRecipe(Material.OAK_PLANKS, Material.OAK_STAIRS);
-    addReverseStairsRecipe(Material.SPRUCE_PLANKS, Material.SPRUCE_STAIRS);
-    addReverseStairsRecipe(Material.BIRCH_PLANKS, Material.BIRCH_STAIRS);
-    addReverseStairsRecipe(Material.JUNGLE_PLANKS, Material.JUNGLE_STAIRS);
-    addReverseStairsRecipe(Material.ACACIA_PLANKS, Material.ACACIA_STAIRS);
-    addReverseStairsRecipe(Material.CHERRY_PLANKS, Material.CHERRY_STAIRS);
-    addReverseStairsRecipe(Material.DARK_OAK_PLANKS, Material.DARK_OAK_STAIRS);
-    addReverseStairsRecipe(Material.MANGROVE_PLANKS, Material.MANGROVE_STAIRS);
-    addReverseStairsRecipe(Material.BAMBOO_PLANKS, Material.BAMBOO_STAIRS);
-    addReverseStairsRecipe(Material.BAMBOO_MOSAIC, Material.BAMBOO_MOSAIC_STAIRS);
-    addReverseStairsRecipe(Material.CRIMSON_PLANKS, Material.CRIMSON_STAIRS);
-    addReverseStairsRecipe(Material.WARPED_PLANKS, Material.WARPED_STAIRS);
-    addReverseStairsRecipe(Material.QUARTZ_PILLAR, Material.QUARTZ_STAIRS);
-    addReverseStairsRecipe(Material.PRISMARINE, Material.PRISMARINE_STAIRS);
-    addReverseStairsRecipe(Material.PRISMARINE_BRICKS, Material.PRISMARINE_BRICK_STAIRS);
-    addReverseStairsRecipe(Material.DARK_PRISMARINE, Material.DARK_PRISMARINE_STAIRS);
-    addReverseStairsRecipe(Material.RED_SANDSTONE, Material.RED_SANDSTONE_STAIRS);
-    addReverseStairsRecipe(Material.POLISHED_GRANITE, Material.POLISHED_GRANITE_STAIRS);
-    addReverseStairsRecipe(Material.SMOOTH_RED_SANDSTONE, Material.SMOOTH_RED_SANDSTONE_STAIRS);
-    addReverseStairsRecipe(Material.MOSSY_STONE_BRICKS, Material.MOSSY_STONE_BRICK_STAIRS);
-    addReverseStairsRecipe(Material.POLISHED_DIORITE, Material.POLISHED_DIORITE_STAIRS);
-    addReverseStairsRecipe(Material.MOSSY_COBBLESTONE, Material.MOSSY_COBBLESTONE_STAIRS);
-    addReverseStairsRecipe(Material.END_STONE_BRICKS, Material.END_STONE_BRICK_STAIRS);
-    addReverseStairsRecipe(Material.STONE, Material.STONE_STAIRS);
-    addReverseStairsRecipe(Material.SMOOTH_SANDSTONE, Material.SMOOTH_SANDSTONE_STAIRS);
-    addReverseStairsRecipe(Material.SMOOTH_QUARTZ, Material.SMOOTH_QUARTZ_STAIRS);
-    addReverseStairsRecipe(Material.GRANITE, Material.GRANITE_STAIRS);
-    addReverseStairsRecipe(Material.ANDESITE, Material.ANDESITE_STAIRS);
-    addReverseStairsRecipe(Material.RED_NETHER_BRICKS, Material.RED_NETHER_BRICK_STAIRS);
-    addReverseStairsRecipe(Material.POLISHED_ANDESITE, Material.POLISHED_ANDESITE_STAIRS);
-    addReverseStairsRecipe(Material.DIORITE, Material.DIORITE_STAIRS);
-    addReverseStairsRecipe(Material.COBBLED_DEEPSLATE, Material.COBBLED_DEEPSLATE_STAIRS);
-    addReverseStairsRecipe(Material.POLISHED_DEEPSLATE, Material.POLISHED_DEEPSLATE_STAIRS);
-    addReverseStairsRecipe(Material.DEEPSLATE_BRICKS, Material.DEEPSLATE_BRICK_STAIRS);
-    addReverseStairsRecipe(Material.DEEPSLATE_TILES, Material.DEEPSLATE_TILE_STAIRS);
-    addReverseStairsRecipe(Material.BLACKSTONE, Material.BLACKSTONE_STAIRS);
-    addReverseStairsRecipe(Material.POLISHED_BLACKSTONE, Material.POLISHED_BLACKSTONE_STAIRS);
-    addReverseStairsRecipe(
-        Material.POLISHED_BLACKSTONE_BRICKS, Material.POLISHED_BLACKSTONE_BRICK_STAIRS);
-  }
-
-  private void addReverseWallRecipe(Material fullMat, Material wallMat) {
-    addRecipe(
-        "reverse_wall_%s_%s".formatted(wallMat, fullMat),
-        fullMat,
-        6,
-        "   ",
-        "AAA",
-        "AAA",
-        Set.of(new RI('A', wallMat)));
-  }
-
-  private void addReverseWallRecipes() {
-    // addReverseWallRecipe(Material.TUFF, Material.TUFF_WALL);
-    // addReverseWallRecipe(Material.POLISHED_TUFF, Material.POLISHED_TUFF_WALL);
-    // addReverseWallRecipe(Material.TUFF, Material.TUFF_BRICK_WALL);
-    addReverseWallRecipe(Material.COBBLESTONE, Material.COBBLESTONE_WALL);
-    addReverseWallRecipe(Material.MOSSY_COBBLESTONE, Material.MOSSY_COBBLESTONE_WALL);
-    addReverseWallRecipe(Material.BRICK, Material.BRICK_WALL);
-    addReverseWallRecipe(Material.PRISMARINE, Material.PRISMARINE_WALL);
-    addReverseWallRecipe(Material.RED_SANDSTONE, Material.RED_SANDSTONE_WALL);
-    addReverseWallRecipe(Material.MOSSY_STONE_BRICKS, Material.MOSSY_STONE_BRICK_WALL);
-    addReverseWallRecipe(Material.GRANITE, Material.GRANITE_WALL);
-    addReverseWallRecipe(Material.STONE, Material.STONE_BRICK_WALL);
-    addReverseWallRecipe(Material.MUD_BRICKS, Material.MUD_BRICK_WALL);
-    addReverseWallRecipe(Material.NETHER_BRICK, Material.NETHER_BRICK_WALL);
-    addReverseWallRecipe(Material.ANDESITE, Material.ANDESITE_WALL);
-    addReverseWallRecipe(Material.RED_NETHER_BRICKS, Material.RED_NETHER_BRICK_WALL);
-    addReverseWallRecipe(Material.SANDSTONE, Material.SANDSTONE_WALL);
-    addReverseWallRecipe(Material.END_STONE_BRICKS, Material.END_STONE_BRICK_WALL);
-    addReverseWallRecipe(Material.DIORITE, Material.DIORITE_WALL);
-    addReverseWallRecipe(Material.BLACKSTONE, Material.BLACKSTONE_WALL);
-    addReverseWallRecipe(Material.POLISHED_BLACKSTONE, Material.POLISHED_BLACKSTONE_WALL);
-    addReverseWallRecipe(
-        Material.POLISHED_BLACKSTONE_BRICKS, Material.POLISHED_BLACKSTONE_BRICK_WALL);
-    addReverseWallRecipe(Material.COBBLED_DEEPSLATE, Material.COBBLED_DEEPSLATE_WALL);
-    addReverseWallRecipe(Material.POLISHED_DEEPSLATE, Material.POLISHED_DEEPSLATE_WALL);
-    addReverseWallRecipe(Material.DEEPSLATE_BRICKS, Material.DEEPSLATE_BRICK_WALL);
-    addReverseWallRecipe(Material.DEEPSLATE_TILES, Material.DEEPSLATE_TILE_WALL);
-  }
-
-  private void addReverseRecipes() {
-    addReverseSlabRecipes();
-    addReverseStairsRecipes();
-    addReverseWallRecipes();
-  }
-
-  private void addVeganRecipes() {
-    addRecipe(
-        "vegan_mushroom_leather",
-        Material.LEATHER,
-        1,
-        "BBB",
-        "BAB",
-        "BBB",
-        Set.of(new RI('A', new MaterialChoice(Tag.WOOL)), new RI('B', Material.BROWN_MUSHROOM)));
-    addRecipe(
-        "vegan_cactus_leather",
-        Material.LEATHER,
-        1,
-        "BBB",
-        "BAB",
-        "BBB",
-        Set.of(new RI('A', new MaterialChoice(Tag.WOOL)), new RI('B', Material.CACTUS)));
-  }
-
-  private long getCurrentTick(Player player) {
-    return player.getWorld().getFullTime();
-  }
-
-  private boolean canMobsAttack(Player player) {
-    if (player.hasPermission(PACIFIER_COMPLETE)) return false;
-    if (!player.hasPermission(PACIFIER_COOLDOWN)) return true;
-    Long lastDamageTick = playerLastDamageTick.get(player);
-    Long currentTick = getCurrentTick(player);
-    if (lastDamageTick == null) return false;
-    return (currentTick - lastDamageTick) < PACIFIER_AGGRO_TICKS;
-  }
-
-  @EventHandler
-  public void onEntityTargetEvent(EntityTargetEvent targetEvent) {
-    Entity entity = targetEvent.getEntity();
-    Entity target = targetEvent.getTarget();
-    if (entity instanceof Enemy enemy
-        && target instanceof Player player
-        && !canMobsAttack(player)) {
-      targetEvent.setCancelled(true);
+    tradingPost.invalidate(villager);
+    tradeIndex.index(villager);
+    if (tradeStore != null) tradeStore.saveLater(villager);
+    if (event.shouldCommit()) {
+      event.setLocation(villager.getLocation());
+      event.level = level;
+      event.cost = getRefreshCost(level);
+      event.commit();
     }
   }
 
-  @EventHandler
-  public void onEntityDamageByEntityEvent(EntityDamageByEntityEvent damageEvent) {
-    Entity entity = damageEvent.getEntity();
-    Entity damager = damageEvent.getDamager();
-    if (damager instanceof Projectile projectile) {
-      if (projectile.getShooter() instanceof Entity e) {
-        damager = e;
-      } else {
-        return;
-      }
-    }
-    if (damager instanceof Player player
-        && entity instanceof Enemy enemy
-        && player.hasPermission(PACIFIER_COOLDOWN)) {
-      playerLastDamageTick.put(player, getCurrentTick(player));
-    } else if (damager instanceof Enemy enemy
-        && enemy instanceof Mob mob
-        && entity instanceof Player player
-        && !canMobsAttack(player)) {
-      mob.setTarget(null);
-    }
+  Metrics getMetrics() {
+    return metrics;
   }
 
-  private void doPacifierCleanup() {
-    for (var entry : playerLastDamageTick.entrySet()) {
-      Player player = entry.getKey();
-      if (entry.getValue() == null) continue;
-      if (!canMobsAttack(player)) {
-        entry.setValue(null);
-        for (var entity : player.getNearbyEntities(32, 10, 32)) {
-          if (entity instanceof Enemy enemy && enemy instanceof Mob mob) {
-            if (mob.getTarget() == player) mob.setTarget(null);
-          }
-        }
-      }
-    }
+  static String cleanKey(NamespacedKey key) {
+    return key.getKey().replace('_', ' ');
   }
 }
@@ -0,0 +1,264 @@
+package com.scottlinder.sane;
+
+import io.papermc.paper.registry.RegistryAccess;
+import io.papermc.paper.registry.RegistryKey;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.format.NamedTextColor;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.NamespacedKey;
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandSender;
+import org.bukkit.command.TabExecutor;
+import org.bukkit.enchantments.Enchantment;
+import org.bukkit.entity.Player;
+import org.bukkit.permissions.Permission;
+import org.bukkit.permissions.PermissionDefault;
+import org.bukkit.util.StringUtil;
+
+/// The `/sane` command, with each subcommand behind its own permission.
+///
+/// `find` answers from the [TradeIndex] alone, without looking at any villager, loaded or not.
+final class SaneCommand implements TabExecutor {
+
+  static final Permission ADMIN =
+      new Permission(
+          "sane.admin", "Player can use the /sane stats and reload commands", PermissionDefault.OP);
+  static final Permission REFRESH =
+      new Permission(
+          "sane.refresh",
+          "Player can pay to refresh the trades of every villager in town at once",
+          PermissionDefault.TRUE);
+  static final Permission FIND =
+      new Permission(
+          "sane.find", "Player can look up which villagers sell an item", PermissionDefault.TRUE);
+  static final String STATS_FILE = "stats.yml";
+
+  /// How many sellers `find` lists, nearest first.
+  private static final int FIND_LIMIT = 10;
+
+  private final Metrics metrics;
+  private final BulkRefresh bulkRefresh;
+  private final TradeIndex tradeIndex;
+  private final TradingPost tradingPost;
+  private final FeatureToggles features;
+  private final File statsFile;
+  private final Executor workers;
+  private final Logger logger;
+
+  SaneCommand(
+      Metrics metrics,
+      BulkRefresh bulkRefresh,
+      TradeIndex tradeIndex,
+      TradingPost tradingPost,
+      FeatureToggles features,
+      File dataFolder,
+      Executor workers,
+      Logger logger) {
+    this.metrics = metrics;
+    this.bulkRefresh = bulkRefresh;
+    this.tradeIndex = tradeIndex;
+    this.tradingPost = tradingPost;
+    this.features = features;
+    this.statsFile = new File(dataFolder, STATS_FILE);
+    this.workers = workers;
+    this.logger = logger;
+  }
+
+  /// Write the current stats to the dump file.
+  void writeStats() {
+    try {
+      metrics.dump(statsFile);
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to write " + STATS_FILE, e);
+    }
+  }
+
+  /// Write the current stats to the dump file, off the calling thread.
+  void dumpStats() {
+    workers.execute(this::writeStats);
+  }
+
+  private static boolean checkPermission(CommandSender sender, Permission permission) {
+    if (sender.hasPermission(permission)) return true;
+    sender.sendMessage(Component.text("You may not do that.", NamedTextColor.RED));
+    return false;
+  }
+
+  private void stats(CommandSender sender, String[] args) {
+    if (!checkPermission(sender, ADMIN)) return;
+    if (args.length > 1 && args[1].equalsIgnoreCase("reset")) {
+      metrics.reset();
+      sender.sendMessage(Component.text("Stats reset.", NamedTextColor.GREEN));
+      return;
+    }
+    for (String line : metrics.describe()) sender.sendMessage(Component.text(line));
+    dumpStats();
+    sender.sendMessage(Component.text("Written to " + STATS_FILE + ".", NamedTextColor.GRAY));
+  }
+
+  private void refresh(CommandSender sender) {
+    if (!checkPermission(sender, REFRESH)) return;
+    if (!(sender instanceof Player player)) {
+      sender.sendMessage(Component.text("Only players can refresh a town.", NamedTextColor.RED));
+      return;
+    }
+    if (!features.isEnabled(FeatureToggles.Feature.BRIBE, player.getWorld())) {
+      sender.sendMessage(
+          Component.text("Bribes are turned off in this world.", NamedTextColor.RED));
+      return;
+    }
+    bulkRefresh.request(player, player.getLocation());
+  }
+
+  private void reload(CommandSender sender) {
+    if (!checkPermission(sender, ADMIN)) return;
+    features.reload();
+    sender.sendMessage(Component.text("Feature settings reloaded.", NamedTextColor.GREEN));
+  }
+
+  private static Enchantment getEnchantment(String name) {
+    NamespacedKey key = NamespacedKey.fromString(name.toLowerCase(Locale.ROOT));
+    if (key == null) return null;
+    return RegistryAccess.registryAccess().getRegistry(RegistryKey.ENCHANTMENT).get(key);
+  }
+
+  /// The index keys for an item name, or an enchantment name at `level`, or at any level if
+  /// `level` is 0. Empty if `name` is neither.
+  private static Set<TradeIndex.Key> getKeys(String name, int level) {
+    Material material = Material.matchMaterial(name);
+    if (material != null && material.isItem()) return Set.of(TradeIndex.Key.of(material));
+    Enchantment enchantment = getEnchantment(name);
+    if (enchantment == null) return Set.of();
+    if (level > 0) return Set.of(TradeIndex.Key.of(enchantment, level));
+    Set<TradeIndex.Key> keys = new HashSet<>();
+    for (int i = enchantment.getStartLevel(); i <= enchantment.getMaxLevel(); i++)
+      keys.add(TradeIndex.Key.of(enchantment, i));
+    return keys;
+  }
+
+  private static String describeLocation(Location location, Location from) {
+    String where =
+        "%d, %d, %d in %s"
+            .formatted(
+                location.getBlockX(),
+                location.getBlockY(),
+                location.getBlockZ(),
+                location.getWorld().getName());
+    if (from == null || location.getWorld() != from.getWorld()) return where;
+    return where + " (%d blocks away)".formatted((int) location.distance(from));
+  }
+
+  private void find(CommandSender sender, String[] args) {
+    if (!checkPermission(sender, FIND)) return;
+    if (args.length < 2) {
+      sender.sendMessage(
+          Component.text(
+              "Usage: /sane find <item|enchantment> [level] [open]", NamedTextColor.RED));
+      return;
+    }
+    int level = 0;
+    boolean open = false;
+    for (int i = 2; i < args.length; i++) {
+      if (args[i].equalsIgnoreCase("open")) open = true;
+      else {
+        try {
+          level = Integer.parseInt(args[i]);
+        } catch (NumberFormatException e) {
+          sender.sendMessage(Component.text("Not a level: " + args[i], NamedTextColor.RED));
+          return;
+        }
+      }
+    }
+    Set<TradeIndex.Key> keys = getKeys(args[1], level);
+    if (keys.isEmpty()) {
+      sender.sendMessage(
+          Component.text("No such item or enchantment: " + args[1], NamedTextColor.RED));
+      return;
+    }
+    String query = args[1].toLowerCase(Locale.ROOT) + (level > 0 ? " " + level : "");
+    List<TradeIndex.Listing> found = tradeIndex.find(keys);
+    if (found.isEmpty()) {
+      sender.sendMessage(Component.text("No villager sells " + query + ".", NamedTextColor.YELLOW));
+      return;
+    }
+    Location from = sender instanceof Player player ? player.getLocation() : null;
+    if (from != null) {
+      found.sort(
+          Comparator.comparingDouble(
+              listing ->
+                  listing.location().getWorld() == from.getWorld()
+                      ? listing.location().distanceSquared(from)
+                      : Double.MAX_VALUE));
+    }
+    sender.sendMessage(
+        Component.text(
+            "%d villagers sell %s:".formatted(found.size(), query), NamedTextColor.GREEN));
+    for (TradeIndex.Listing listing : found.subList(0, Math.min(FIND_LIMIT, found.size())))
+      sender.sendMessage(Component.text("  " + describeLocation(listing.location(), from)));
+    if (!open) return;
+    if (!(sender instanceof Player player)) {
+      sender.sendMessage(
+          Component.text("Only players can open a Trading Post.", NamedTextColor.RED));
+      return;
+    }
+    List<UUID> villagers = new ArrayList<>(found.size());
+    for (TradeIndex.Listing listing : found) villagers.add(listing.villager());
+    tradingPost.openMatches(
+        player,
+        Component.text("Trading Post: " + query),
+        villagers,
+        recipe -> !Collections.disjoint(TradeIndex.getKeys(recipe.getResult()), keys));
+  }
+
+  private static List<String> getFindNames() {
+    List<String> names = new ArrayList<>();
+    for (Enchantment enchantment :
+        RegistryAccess.registryAccess().getRegistry(RegistryKey.ENCHANTMENT)) {
+      names.add(enchantment.getKey().getKey());
+    }
+    for (Material material : Material.values()) {
+      if (material.isItem() && !material.isLegacy()) names.add(material.getKey().getKey());
+    }
+    return names;
+  }
+
+  @Override
+  public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
+    if (args.length == 0) return false;
+    switch (args[0].toLowerCase(Locale.ROOT)) {
+      case "stats" -> stats(sender, args);
+      case "refresh" -> refresh(sender);
+      case "find" -> find(sender, args);
+      case "reload" -> reload(sender);
+      default -> {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public List<String> onTabComplete(
+      CommandSender sender, Command command, String label, String[] args) {
+    List<String> options = List.of();
+    if (args.length == 1) options = List.of("find", "refresh", "reload", "stats");
+    else if (args.length == 2 && args[0].equalsIgnoreCase("stats")) options = List.of("reset");
+    else if (args.length == 2 && args[0].equalsIgnoreCase("find")) options = getFindNames();
+    else if (args.length > 2 && args[0].equalsIgnoreCase("find")) options = List.of("open");
+    return StringUtil.copyPartialMatches(args[args.length - 1], options, new ArrayList<>());
+  }
+}
@@ -0,0 +1,133 @@
+package com.scottlinder.sane;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.entity.Entity;
+import org.bukkit.plugin.Plugin;
+
+/// Runs the plugin's deferred work on the right thread.
+///
+/// On Folia, work tied to an entity goes to that entity's scheduler, work tied to a block goes to
+/// the owning region's scheduler, and timers go to the global region scheduler. Everywhere else
+/// everything goes to the Bukkit scheduler, on the main thread.
+final class TaskScheduler {
+
+  private final Plugin plugin;
+  private final boolean folia;
+
+  TaskScheduler(Plugin plugin) {
+    this.plugin = plugin;
+    this.folia = isFolia();
+  }
+
+  private static boolean isFolia() {
+    try {
+      Class.forName("io.papermc.paper.threadedregions.RegionizedServer");
+      return true;
+    } catch (ClassNotFoundException e) {
+      return false;
+    }
+  }
+
+  /// Run `task` on the next tick, on the thread owning `entity`. Dropped if the entity is removed
+  /// first.
+  void runAt(Entity entity, Runnable task) {
+    if (folia) entity.getScheduler().run(plugin, t -> task.run(), null);
+    else Bukkit.getScheduler().runTask(plugin, task);
+  }
+
+  /// Run `task` on the next tick, on the thread owning `entity`, or if the entity is removed
+  /// first run `retired` instead, on no particular thread. Off Folia `task` always runs, so it
+  /// has to check the entity is still valid itself.
+  void runAt(Entity entity, Runnable task, Runnable retired) {
+    if (!folia) Bukkit.getScheduler().runTask(plugin, task);
+    else if (entity.getScheduler().run(plugin, t -> task.run(), retired) == null) retired.run();
+  }
+
+  /// Whether the current thread may touch `entity`, for code already running on one of the
+  /// server's threads. Off Folia that is the main thread, which owns every entity.
+  boolean owns(Entity entity) {
+    return !folia || Bukkit.isOwnedByCurrentRegion(entity);
+  }
+
+  /// Run `task` right away if the current thread owns `entity`, and otherwise as {@link
+  /// #runAt(Entity, Runnable)}.
+  void execute(Entity entity, Runnable task) {
+    if (owns(entity)) task.run();
+    else runAt(entity, task);
+  }
+
+  /// Run `task` right away if the current thread owns `entity`, and otherwise as
+  /// {@link #runAt(Entity, Runnable, Runnable)}.
+  void execute(Entity entity, Runnable task, Runnable retired) {
+    if (owns(entity)) task.run();
+    else runAt(entity, task, retired);
+  }
+
+  /// Run `task` right away if the current thread owns `location`, and otherwise as
+  /// {@link #runAt(Location, Runnable)}.
+  void execute(Location location, Runnable task) {
+    if (!folia || Bukkit.isOwnedByCurrentRegion(location)) task.run();
+    else runAt(location, task);
+  }
+
+  /// Compute `task` right away if the current thread owns `entity`, and otherwise on the next
+  /// tick on the thread owning it, completing with `retired` instead if the entity is removed
+  /// first. Off Folia `task` always runs, so it has to check the entity is still valid itself.
+  <T> CompletableFuture<T> supply(Entity entity, Supplier<T> task, T retired) {
+    if (owns(entity)) return CompletableFuture.completedFuture(task.get());
+    CompletableFuture<T> result = new CompletableFuture<>();
+    runAt(
+        entity,
+        () -> {
+          try {
+            result.complete(task.get());
+          } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+          }
+        },
+        () -> result.complete(retired));
+    return result;
+  }
+
+  /// The results of `futures` once they are all done, in order, leaving out `null` ones. Completes
+  /// on the thread that completed the last of them.
+  static <T> CompletableFuture<List<T>> allOf(List<CompletableFuture<T>> futures) {
+    return CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new))
+        .thenApply(
+            done -> {
+              List<T> results = new ArrayList<>(futures.size());
+              for (CompletableFuture<T> future : futures) {
+                T result = future.join();
+                if (result != null) results.add(result);
+              }
+              return results;
+            });
+  }
+
+  /// Run `task` on the next tick, on the thread owning `location`.
+  void runAt(Location location, Runnable task) {
+    if (folia) Bukkit.getRegionScheduler().run(plugin, location, t -> task.run());
+    else Bukkit.getScheduler().runTask(plugin, task);
+  }
+
+  /// Run `task` after `delayTicks` ticks, on the thread owning `location`.
+  void runAtLater(Location location, Runnable task, long delayTicks) {
+    if (folia)
+      Bukkit.getRegionScheduler().runDelayed(plugin, location, t -> task.run(), delayTicks);
+    else Bukkit.getScheduler().runTaskLater(plugin, task, delayTicks);
+  }
+
+  /// Run `task` every `periodTicks` ticks, starting after `delayTicks`, on the global region on
+  /// Folia.
+  void runTimer(Runnable task, long delayTicks, long periodTicks) {
+    if (folia)
+      Bukkit.getGlobalRegionScheduler()
+          .runAtFixedRate(plugin, t -> task.run(), delayTicks, periodTicks);
+    else Bukkit.getScheduler().runTaskTimer(plugin, task, delayTicks, periodTicks);
+  }
+}
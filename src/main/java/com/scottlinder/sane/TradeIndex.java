@@ -0,0 +1,189 @@
+package com.scottlinder.sane;
+
+import com.destroystokyo.paper.event.entity.EntityAddToWorldEvent;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.enchantments.Enchantment;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.Villager;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.entity.EntityDeathEvent;
+import org.bukkit.event.entity.EntityRemoveEvent;
+import org.bukkit.event.entity.EntityTransformEvent;
+import org.bukkit.event.entity.VillagerAcquireTradeEvent;
+import org.bukkit.event.entity.VillagerCareerChangeEvent;
+import org.bukkit.event.world.EntitiesUnloadEvent;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.MerchantRecipe;
+import org.bukkit.inventory.meta.EnchantmentStorageMeta;
+
+/// Which villagers sell what, for answering "where can I buy X" without looking at any entity.
+///
+/// Every villager's trades are filed under the item each one sells and under each enchantment
+/// and level on it, whether applied or stored in a book. A villager is re-filed whenever its
+/// trades may have changed and when its chunk loads or unloads, and stays listed at its last
+/// known location while unloaded, until it dies, converts or is otherwise removed.
+final class TradeIndex implements Listener {
+
+  /// Something a villager can sell: an item, or an enchantment at a level on any item.
+  record Key(Material material, Enchantment enchantment, int level) {
+    static Key of(Material material) {
+      return new Key(material, null, 0);
+    }
+
+    static Key of(Enchantment enchantment, int level) {
+      return new Key(null, enchantment, level);
+    }
+  }
+
+  /// A villager's last known location and everything it sells.
+  record Listing(UUID villager, Location location, Set<Key> keys) {}
+
+  private final TaskScheduler scheduler;
+  private final Map<Key, Set<UUID>> sellers = new ConcurrentHashMap<>();
+  private final Map<UUID, Listing> listings = new ConcurrentHashMap<>();
+
+  TradeIndex(TaskScheduler scheduler) {
+    this.scheduler = scheduler;
+  }
+
+  /// Every key `stack` is sold under.
+  static Set<Key> getKeys(ItemStack stack) {
+    Set<Key> keys = new HashSet<>();
+    keys.add(Key.of(stack.getType()));
+    for (var entry : stack.getEnchantments().entrySet())
+      keys.add(Key.of(entry.getKey(), entry.getValue()));
+    if (stack.getItemMeta() instanceof EnchantmentStorageMeta meta) {
+      for (var entry : meta.getStoredEnchants().entrySet())
+        keys.add(Key.of(entry.getKey(), entry.getValue()));
+    }
+    return keys;
+  }
+
+  private static Set<Key> getKeys(List<MerchantRecipe> recipes) {
+    Set<Key> keys = new HashSet<>();
+    for (MerchantRecipe recipe : recipes) keys.addAll(getKeys(recipe.getResult()));
+    return keys;
+  }
+
+  private synchronized void put(UUID villager, Location location, Set<Key> keys) {
+    Listing old = listings.put(villager, new Listing(villager, location, keys));
+    if (old != null) {
+      for (Key key : old.keys()) {
+        if (!keys.contains(key)) removeSeller(key, villager);
+      }
+    }
+    for (Key key : keys) {
+      sellers.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(villager);
+    }
+  }
+
+  private void removeSeller(Key key, UUID villager) {
+    Set<UUID> villagers = sellers.get(key);
+    if (villagers == null) return;
+    villagers.remove(villager);
+    if (villagers.isEmpty()) sellers.remove(key);
+  }
+
+  /// File `villager` under its current trades. Must run on the villager's thread.
+  void index(Villager villager) {
+    put(villager.getUniqueId(), villager.getLocation(), getKeys(villager.getRecipes()));
+  }
+
+  /// File every villager in `tradeStore` that has not been indexed from the world since, so that
+  /// villagers in chunks not loaded since startup can be found too. Safe to call from any thread.
+  void seed(TradeStore tradeStore) {
+    for (TradeStore.Entry entry : tradeStore.getEntries()) {
+      if (listings.containsKey(entry.villager())) continue;
+      World world = Bukkit.getWorld(entry.world());
+      if (world == null) continue;
+      Location location = new Location(world, entry.x() + 0.5, entry.y(), entry.z() + 0.5);
+      Set<Key> keys = getKeys(tradeStore.read(entry));
+      synchronized (this) {
+        if (!listings.containsKey(entry.villager())) put(entry.villager(), location, keys);
+      }
+    }
+  }
+
+  private synchronized void remove(UUID villager) {
+    Listing old = listings.remove(villager);
+    if (old == null) return;
+    for (Key key : old.keys()) removeSeller(key, villager);
+  }
+
+  /// The villagers selling anything under any of `keys`.
+  List<Listing> find(Set<Key> keys) {
+    Set<UUID> villagers = new HashSet<>();
+    for (Key key : keys) villagers.addAll(sellers.getOrDefault(key, Set.of()));
+    List<Listing> found = new ArrayList<>(villagers.size());
+    for (UUID villager : villagers) {
+      Listing listing = listings.get(villager);
+      if (listing != null) found.add(listing);
+    }
+    return found;
+  }
+
+  private void indexLater(Villager villager) {
+    scheduler.runAt(
+        villager,
+        () -> {
+          if (villager.isValid()) index(villager);
+        });
+  }
+
+  // Reading the trades of a villager that has none yet makes the server roll them, raising trade
+  // events in the middle of loading the chunk, so that waits for the next tick. Unemployed
+  // villagers sell nothing.
+  @EventHandler
+  public void onEntityAddToWorld(EntityAddToWorldEvent event) {
+    if (event.getEntity() instanceof Villager villager
+        && villager.getProfession() != Villager.Profession.NONE) indexLater(villager);
+  }
+
+  @EventHandler
+  public void onEntitiesUnload(EntitiesUnloadEvent event) {
+    for (Entity entity : event.getEntities()) {
+      if (entity instanceof Villager villager) index(villager);
+    }
+  }
+
+  @EventHandler
+  public void onEntityDeath(EntityDeathEvent event) {
+    if (event.getEntity() instanceof Villager villager) remove(villager.getUniqueId());
+  }
+
+  // Turning into a zombie villager or a witch raises no death event.
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onEntityTransform(EntityTransformEvent event) {
+    if (event.getEntity() instanceof Villager villager) remove(villager.getUniqueId());
+  }
+
+  // Nor does being removed by a plugin or command. Unloading leaves the villager listed.
+  @EventHandler
+  public void onEntityRemove(EntityRemoveEvent event) {
+    if (event.getEntity() instanceof Villager villager
+        && event.getCause() != EntityRemoveEvent.Cause.UNLOAD) remove(villager.getUniqueId());
+  }
+
+  // Both events fire before the trades change, so re-file the villager on the next tick.
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onVillagerAcquireTrade(VillagerAcquireTradeEvent event) {
+    if (event.getEntity() instanceof Villager villager) indexLater(villager);
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onVillagerCareerChange(VillagerCareerChangeEvent event) {
+    indexLater(event.getEntity());
+  }
+}
@@ -0,0 +1,580 @@
+package com.scottlinder.sane;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.Villager;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.entity.EntityDeathEvent;
+import org.bukkit.event.entity.EntityRemoveEvent;
+import org.bukkit.event.entity.EntityTransformEvent;
+import org.bukkit.event.entity.VillagerAcquireTradeEvent;
+import org.bukkit.event.entity.VillagerCareerChangeEvent;
+import org.bukkit.event.world.EntitiesUnloadEvent;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.MerchantRecipe;
+import org.bukkit.util.BoundingBox;
+
+/// Remembers every villager's trades on disk, so Trading Posts can offer the trades of villagers
+/// whose chunks are not loaded without loading them.
+///
+/// The store is an append-only file of records, each holding one villager's position and
+/// trade list, with a later record for the same villager replacing the earlier one and an empty
+/// record with no trade list marking a villager as gone: dead, converted, or removed other than
+/// by unloading. A villager is written when its trades change, at most once a tick, and when its
+/// chunk unloads, but only if its trades or chunk differ from its latest record. An in-memory
+/// index of the latest record for each villager, also filed by chunk, is rebuilt from the file
+/// on startup.
+///
+/// Once stale records take up more of the file than live ones, the live ones are copied into a
+/// fresh file, the next generation, which replaces it. Each generation's file is memory mapped
+/// once, as far as it went when opened, so serving a town's stored trades mostly reads straight
+/// from the page cache; records appended since are read with positional reads instead.
+///
+/// The trades are copied on the villager's thread, and serialized and appended on a single
+/// writer thread, in the order they were saved.
+final class TradeStore implements Listener {
+
+  /// Where the latest record for a villager is, and where that villager was when it was written.
+  record Entry(
+      UUID villager, UUID world, int x, int y, int z, int generation, long offset, int length) {
+    Entry at(int generation, long offset) {
+      return new Entry(villager, world, x, y, z, generation, offset, length);
+    }
+  }
+
+  /// One generation of the file, mapped as far as it went when it was opened.
+  private record Generation(int number, Path path, FileChannel channel, MappedByteBuffer mapped) {}
+
+  /// Bytes of each record before its trades: length, villager, world, position and the length of
+  /// the trades, which is [#GONE] for a villager that is gone.
+  private static final int HEADER_BYTES = Integer.BYTES * 5 + Long.BYTES * 4;
+
+  private static final int GONE = -1;
+
+  /// Compact once stale records take up more than this much of the file, in bytes, and more than
+  /// live ones do.
+  private static final long COMPACT_SLACK = 1 << 20;
+
+  private static final String SUFFIX = ".bin";
+
+  private final Path directory;
+  private final TaskScheduler scheduler;
+  private final Logger logger;
+  private final ExecutorService writer =
+      Executors.newSingleThreadExecutor(Thread.ofVirtual().name("sane-trade-store").factory());
+  private final Map<UUID, Entry> entries = new ConcurrentHashMap<>();
+
+  /// The entries again, by world and then by chunk, for finding those around a bell.
+  private final Map<UUID, Map<Long, Map<UUID, Entry>>> chunks = new ConcurrentHashMap<>();
+
+  /// Villagers with a save scheduled for the next tick.
+  private final Set<UUID> pending = ConcurrentHashMap.newKeySet();
+
+  /// Held for reading while reading a record, and for writing while switching generations.
+  private final ReadWriteLock generationLock = new ReentrantReadWriteLock();
+
+  private volatile Generation current;
+
+  /// The length of the current file and of the records in it that are live. Only touched by the
+  /// writer thread once open.
+  private long size;
+
+  private long liveBytes;
+
+  TradeStore(Path directory, TaskScheduler scheduler, Logger logger) {
+    this.directory = directory;
+    this.scheduler = scheduler;
+    this.logger = logger;
+  }
+
+  /// The generation of the file at `path`, or -1 if it is not one of the store's files.
+  private static int getGeneration(Path path) {
+    String name = path.getFileName().toString();
+    if (!name.endsWith(SUFFIX)) return -1;
+    try {
+      return Integer.parseInt(name.substring(0, name.length() - SUFFIX.length()));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /// Index the records in the latest generation's file, deleting any older generation left
+  /// behind, and compact it first if it is mostly stale.
+  void open() throws IOException {
+    Files.createDirectories(directory);
+    List<Path> files;
+    try (Stream<Path> list = Files.list(directory)) {
+      files = list.toList();
+    }
+    int number = 0;
+    for (Path file : files) number = Math.max(number, getGeneration(file));
+    Path path = directory.resolve(number + SUFFIX);
+    for (Path file : files) {
+      String name = file.getFileName().toString();
+      if (!file.equals(path) && (name.endsWith(SUFFIX) || name.endsWith(".tmp")))
+        Files.delete(file);
+    }
+    FileChannel channel =
+        FileChannel.open(
+            path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    size = index(channel, number);
+    current =
+        new Generation(number, path, channel, channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+    if (isMostlyStale()) compact();
+  }
+
+  /// Read every record into the index, dropping a torn record left at the end by a crash, and
+  /// return the length of the records kept.
+  private long index(FileChannel channel, int generation) throws IOException {
+    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    int offset = 0;
+    while (offset + HEADER_BYTES <= buffer.limit()) {
+      long length = Integer.BYTES + (long) buffer.getInt(offset);
+      if (length < HEADER_BYTES || offset + length > buffer.limit()) break;
+      int trades = buffer.getInt(offset + HEADER_BYTES - Integer.BYTES);
+      if (trades == GONE ? length != HEADER_BYTES : trades != length - HEADER_BYTES) break;
+      Entry entry = readHeader(buffer, offset, (int) length, generation);
+      if (trades == GONE) untrack(entry.villager());
+      else track(entry);
+      offset += (int) length;
+    }
+    if (offset < buffer.limit()) {
+      logger.warning("Dropping a torn record at the end of " + directory.getFileName());
+      channel.truncate(offset);
+    }
+    return offset;
+  }
+
+  private static Entry readHeader(ByteBuffer buffer, int offset, int length, int generation) {
+    int at = offset + Integer.BYTES;
+    UUID villager = new UUID(buffer.getLong(at), buffer.getLong(at + Long.BYTES));
+    at += 2 * Long.BYTES;
+    UUID world = new UUID(buffer.getLong(at), buffer.getLong(at + Long.BYTES));
+    at += 2 * Long.BYTES;
+    return new Entry(
+        villager,
+        world,
+        buffer.getInt(at),
+        buffer.getInt(at + Integer.BYTES),
+        buffer.getInt(at + 2 * Integer.BYTES),
+        generation,
+        offset,
+        length);
+  }
+
+  private static long chunkKey(Entry entry) {
+    return VillagerIndex.chunkKey(entry.x() >> 4, entry.z() >> 4);
+  }
+
+  /// Make `entry` its villager's latest.
+  private void track(Entry entry) {
+    Entry old = entries.put(entry.villager(), entry);
+    if (old != null) {
+      liveBytes -= old.length();
+      unfile(old);
+    }
+    liveBytes += entry.length();
+    chunks
+        .computeIfAbsent(entry.world(), w -> new ConcurrentHashMap<>())
+        .computeIfAbsent(chunkKey(entry), c -> new ConcurrentHashMap<>())
+        .put(entry.villager(), entry);
+  }
+
+  private void untrack(UUID villager) {
+    Entry old = entries.remove(villager);
+    if (old == null) return;
+    liveBytes -= old.length();
+    unfile(old);
+  }
+
+  private void unfile(Entry entry) {
+    Map<Long, Map<UUID, Entry>> worldChunks = chunks.get(entry.world());
+    if (worldChunks == null) return;
+    long chunkKey = chunkKey(entry);
+    Map<UUID, Entry> chunk = worldChunks.get(chunkKey);
+    if (chunk == null) return;
+    chunk.remove(entry.villager(), entry);
+    if (chunk.isEmpty()) worldChunks.remove(chunkKey);
+  }
+
+  private boolean isMostlyStale() {
+    return size - liveBytes > Math.max(liveBytes, COMPACT_SLACK);
+  }
+
+  private static void readFully(Generation generation, long offset, byte[] bytes)
+      throws IOException {
+    MappedByteBuffer mapped = generation.mapped();
+    if (offset + bytes.length <= mapped.limit()) {
+      mapped.get((int) offset, bytes);
+      return;
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    while (buffer.hasRemaining()) {
+      if (generation.channel().read(buffer, offset + buffer.position()) < 0)
+        throw new EOFException();
+    }
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer, long offset)
+      throws IOException {
+    while (buffer.hasRemaining()) channel.write(buffer, offset + buffer.position());
+  }
+
+  /// Copy the live records into the next generation's file and switch to it, deleting the old
+  /// file. Runs on the writer thread.
+  private void compact() throws IOException {
+    Generation old = current;
+    int number = old.number() + 1;
+    Path compacted = directory.resolve(number + ".tmp");
+    Path path = directory.resolve(number + SUFFIX);
+    List<Entry> moved = new ArrayList<>(entries.size());
+    long offset = 0;
+    try (FileChannel out =
+        FileChannel.open(
+            compacted,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+      for (Entry entry : List.copyOf(entries.values())) {
+        byte[] record = new byte[entry.length()];
+        readFully(old, entry.offset(), record);
+        writeFully(out, ByteBuffer.wrap(record), offset);
+        moved.add(entry.at(number, offset));
+        offset += entry.length();
+      }
+      out.force(true);
+    }
+    Files.move(compacted, path, StandardCopyOption.ATOMIC_MOVE);
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, offset);
+    Generation next = new Generation(number, path, channel, mapped);
+    generationLock.writeLock().lock();
+    try {
+      current = next;
+      for (Entry entry : moved) track(entry);
+    } finally {
+      generationLock.writeLock().unlock();
+    }
+    size = offset;
+    old.channel().close();
+    try {
+      Files.delete(old.path());
+    } catch (IOException e) {
+      // Still mapped on some platforms; the next startup deletes it.
+      logger.log(Level.FINE, "Leaving " + old.path().getFileName() + " for the next startup", e);
+    }
+  }
+
+  /// Encode `trades`, the results and non-empty ingredients of each recipe in turn, with
+  /// `ingredientCounts` saying how many ingredients each recipe has.
+  private static byte[] encodeTrades(byte[] ingredientCounts, List<ItemStack> stacks) {
+    byte[] items = stacks.isEmpty() ? new byte[0] : ItemStack.serializeItemsAsBytes(stacks);
+    return ByteBuffer.allocate(Integer.BYTES + ingredientCounts.length + items.length)
+        .putInt(ingredientCounts.length)
+        .put(ingredientCounts)
+        .put(items)
+        .array();
+  }
+
+  private static List<MerchantRecipe> decodeTrades(byte[] trades) {
+    ByteBuffer buffer = ByteBuffer.wrap(trades);
+    byte[] ingredientCounts = new byte[buffer.getInt()];
+    buffer.get(ingredientCounts);
+    if (ingredientCounts.length == 0) return List.of();
+    ItemStack[] stacks =
+        ItemStack.deserializeItemsFromBytes(
+            Arrays.copyOfRange(trades, buffer.position(), trades.length));
+    List<MerchantRecipe> recipes = new ArrayList<>(ingredientCounts.length);
+    int next = 0;
+    for (byte ingredients : ingredientCounts) {
+      MerchantRecipe recipe =
+          new MerchantRecipe(
+              stacks[next++],
+              /* uses= */ 0,
+              /* maxUses= */ Integer.MAX_VALUE,
+              /* experienceReward= */ false);
+      for (int i = 0; i < ingredients; i++) recipe.addIngredient(stacks[next++]);
+      recipes.add(recipe);
+    }
+    return recipes;
+  }
+
+  private static byte[] encode(UUID villager, UUID world, int x, int y, int z, byte[] trades) {
+    int tradesLength = trades == null ? 0 : trades.length;
+    ByteBuffer record =
+        ByteBuffer.allocate(HEADER_BYTES + tradesLength)
+            .putInt(HEADER_BYTES - Integer.BYTES + tradesLength)
+            .putLong(villager.getMostSignificantBits())
+            .putLong(villager.getLeastSignificantBits())
+            .putLong(world.getMostSignificantBits())
+            .putLong(world.getLeastSignificantBits())
+            .putInt(x)
+            .putInt(y)
+            .putInt(z)
+            .putInt(trades == null ? GONE : tradesLength);
+    if (trades != null) record.put(trades);
+    return record.array();
+  }
+
+  /// Append a record, unless it would only repeat the latest one for the villager in all but its
+  /// position within the same chunk. Runs on the writer thread.
+  private void write(UUID villager, UUID world, int x, int y, int z, byte[] trades)
+      throws IOException {
+    Entry old = entries.get(villager);
+    if (trades == null) {
+      if (old == null) return;
+    } else if (old != null
+        && old.world().equals(world)
+        && old.x() >> 4 == x >> 4
+        && old.z() >> 4 == z >> 4
+        && Arrays.equals(trades, readTrades(old))) {
+      return;
+    }
+    Generation generation = current;
+    byte[] record = encode(villager, world, x, y, z, trades);
+    writeFully(generation.channel(), ByteBuffer.wrap(record), size);
+    Entry entry = new Entry(villager, world, x, y, z, generation.number(), size, record.length);
+    size += record.length;
+    if (trades == null) untrack(villager);
+    else track(entry);
+    if (isMostlyStale()) compact();
+  }
+
+  /// Store the trades supplied by `trades`, encoded as by [#encodeTrades(byte[], List)], for
+  /// `villager` at `x`, `y` and `z` in `world`; or with `null` trades, forget the villager. The
+  /// trades are supplied and written on the writer thread, in the order stored.
+  void store(UUID villager, UUID world, int x, int y, int z, Supplier<byte[]> trades) {
+    writer.execute(
+        () -> {
+          try {
+            write(villager, world, x, y, z, trades.get());
+          } catch (IOException | RuntimeException e) {
+            logger.log(Level.WARNING, "Failed to store trades", e);
+          }
+        });
+  }
+
+  private void store(Villager villager, Supplier<byte[]> trades) {
+    Location location = villager.getLocation();
+    store(
+        villager.getUniqueId(),
+        location.getWorld().getUID(),
+        location.getBlockX(),
+        location.getBlockY(),
+        location.getBlockZ(),
+        trades);
+  }
+
+  /// Store `villager`'s current trades. Must run on the villager's thread, where the item stacks
+  /// are copied; serializing them is left to the writer thread.
+  void save(Villager villager) {
+    List<MerchantRecipe> recipes = villager.getRecipes();
+    byte[] ingredientCounts = new byte[recipes.size()];
+    List<ItemStack> stacks = new ArrayList<>(recipes.size() * 3);
+    for (int i = 0; i < recipes.size(); i++) {
+      MerchantRecipe recipe = recipes.get(i);
+      stacks.add(recipe.getResult().clone());
+      // Already copies.
+      for (ItemStack ingredient : recipe.getIngredients()) {
+        if (ingredient.isEmpty()) continue;
+        stacks.add(ingredient);
+        ingredientCounts[i]++;
+      }
+    }
+    store(villager, () -> encodeTrades(ingredientCounts, stacks));
+  }
+
+  /// Store `villager`'s trades on the next tick, once however many times this is called before
+  /// then.
+  void saveLater(Villager villager) {
+    UUID id = villager.getUniqueId();
+    if (!pending.add(id)) return;
+    scheduler.runAt(
+        villager,
+        () -> {
+          pending.remove(id);
+          if (villager.isValid()) save(villager);
+        },
+        () -> pending.remove(id));
+  }
+
+  private void forget(Villager villager) {
+    store(villager, () -> null);
+  }
+
+  /// Wait until everything stored so far has been written.
+  void flush() {
+    CompletableFuture.runAsync(() -> {}, writer).join();
+  }
+
+  /// Every stored villager.
+  Collection<Entry> getEntries() {
+    return entries.values();
+  }
+
+  /// The stored entry for `villager`, or `null` if it has none.
+  Entry getEntry(UUID villager) {
+    return entries.get(villager);
+  }
+
+  /// The stored villagers within `x`, `y` and `z` blocks of `center` whose chunks are not loaded,
+  /// leaving out the `loaded` villagers in case one of them has wandered since it was stored.
+  List<Entry> getUnloadedVillagers(
+      Location center, double x, double y, double z, Set<UUID> loaded) {
+    World world = center.getWorld();
+    List<Entry> unloaded = new ArrayList<>();
+    Map<Long, Map<UUID, Entry>> worldChunks = chunks.get(world.getUID());
+    if (worldChunks == null) return unloaded;
+    BoundingBox box = BoundingBox.of(center, x, y, z);
+    int minX = (int) Math.floor(box.getMinX()) >> 4;
+    int minZ = (int) Math.floor(box.getMinZ()) >> 4;
+    int maxX = (int) Math.floor(box.getMaxX()) >> 4;
+    int maxZ = (int) Math.floor(box.getMaxZ()) >> 4;
+    long area = (long) (maxX - minX + 1) * (maxZ - minZ + 1);
+    if (area > worldChunks.size()) {
+      for (var chunk : worldChunks.entrySet()) {
+        int chunkX = (int) (long) chunk.getKey();
+        int chunkZ = (int) (chunk.getKey() >> 32);
+        if (chunkX < minX || chunkX > maxX || chunkZ < minZ || chunkZ > maxZ) continue;
+        collect(world, chunkX, chunkZ, chunk.getValue(), box, loaded, unloaded);
+      }
+    } else {
+      for (int chunkX = minX; chunkX <= maxX; chunkX++) {
+        for (int chunkZ = minZ; chunkZ <= maxZ; chunkZ++) {
+          Map<UUID, Entry> chunk = worldChunks.get(VillagerIndex.chunkKey(chunkX, chunkZ));
+          if (chunk != null) collect(world, chunkX, chunkZ, chunk, box, loaded, unloaded);
+        }
+      }
+    }
+    return unloaded;
+  }
+
+  private static void collect(
+      World world,
+      int chunkX,
+      int chunkZ,
+      Map<UUID, Entry> chunk,
+      BoundingBox box,
+      Set<UUID> loaded,
+      List<Entry> unloaded) {
+    if (world.isChunkLoaded(chunkX, chunkZ)) return;
+    for (Entry entry : chunk.values()) {
+      if (!loaded.contains(entry.villager())
+          && box.contains(entry.x() + 0.5, entry.y(), entry.z() + 0.5)) unloaded.add(entry);
+    }
+  }
+
+  /// The encoded trades in the latest record for `entry`'s villager, or `null` if it is gone.
+  /// Safe to call from any thread.
+  byte[] readTrades(Entry entry) {
+    generationLock.readLock().lock();
+    try {
+      Generation generation = current;
+      // Compacted since the entry was looked up, so it moved.
+      if (entry.generation() != generation.number()) entry = entries.get(entry.villager());
+      if (entry == null) return null;
+      byte[] trades = new byte[entry.length() - HEADER_BYTES];
+      readFully(generation, entry.offset() + HEADER_BYTES, trades);
+      return trades;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      generationLock.readLock().unlock();
+    }
+  }
+
+  /// Decode the trades stored for `entry`. Safe to call from any thread.
+  List<MerchantRecipe> read(Entry entry) {
+    byte[] trades = readTrades(entry);
+    return trades == null ? List.of() : decodeTrades(trades);
+  }
+
+  @EventHandler
+  public void onEntitiesUnload(EntitiesUnloadEvent event) {
+    for (Entity entity : event.getEntities()) {
+      if (entity instanceof Villager villager) save(villager);
+    }
+  }
+
+  @EventHandler
+  public void onEntityDeath(EntityDeathEvent event) {
+    if (event.getEntity() instanceof Villager villager) forget(villager);
+  }
+
+  // Turning into a zombie villager or a witch raises no death event.
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onEntityTransform(EntityTransformEvent event) {
+    if (event.getEntity() instanceof Villager villager) forget(villager);
+  }
+
+  // Nor does being removed by a plugin or command. Unloading leaves the villager stored.
+  @EventHandler
+  public void onEntityRemove(EntityRemoveEvent event) {
+    if (event.getEntity() instanceof Villager villager
+        && event.getCause() != EntityRemoveEvent.Cause.UNLOAD) forget(villager);
+  }
+
+  // Both events fire before the trades change, so store them on the next tick.
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onVillagerAcquireTrade(VillagerAcquireTradeEvent event) {
+    if (event.getEntity() instanceof Villager villager) saveLater(villager);
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onVillagerCareerChange(VillagerCareerChangeEvent event) {
+    saveLater(event.getEntity());
+  }
+
+  /// Store the trades of every villager still loaded, then flush and close the file.
+  void close(Collection<Villager> loaded) {
+    for (Villager villager : loaded) {
+      if (villager.isValid()) save(villager);
+    }
+    writer.shutdown();
+    try {
+      if (!writer.awaitTermination(10, TimeUnit.SECONDS))
+        logger.warning("Timed out storing trades");
+      generationLock.writeLock().lock();
+      try {
+        current.channel().close();
+      } finally {
+        generationLock.writeLock().unlock();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to close " + current.path().getFileName(), e);
+    }
+  }
+}
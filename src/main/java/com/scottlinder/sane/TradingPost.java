@@ -0,0 +1,596 @@
+package com.scottlinder.sane;
+
+import com.destroystokyo.paper.event.entity.EntityAddToWorldEvent;
+import com.destroystokyo.paper.event.entity.EntityRemoveFromWorldEvent;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import net.kyori.adventure.text.Component;
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.entity.Player;
+import org.bukkit.entity.Villager;
+import org.bukkit.event.Event;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.Listener;
+import org.bukkit.event.block.Action;
+import org.bukkit.event.entity.VillagerAcquireTradeEvent;
+import org.bukkit.event.entity.VillagerCareerChangeEvent;
+import org.bukkit.event.inventory.InventoryClickEvent;
+import org.bukkit.event.inventory.InventoryDragEvent;
+import org.bukkit.event.player.PlayerInteractEvent;
+import org.bukkit.event.world.WorldUnloadEvent;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.InventoryHolder;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.MenuType;
+import org.bukkit.inventory.MerchantRecipe;
+import org.bukkit.inventory.view.MerchantView;
+
+/// The bell "Trading Post": a merchant view offering every trade of every villager in town,
+/// with infinite uses.
+///
+/// Built offer lists are kept per bell and reused until a villager in range gains, loses or
+/// changes trades. Players clicking the same bell while its offers are being built share that
+/// build.
+///
+/// Offer lists are assembled in three steps: the villagers' recipes are collected on the bell's
+/// thread, the infinite offers are cloned and deduplicated on a worker thread, and only opening
+/// the merchant view hops back to the player's thread. On Folia a town can span regions, so the
+/// recipes of villagers in other regions are collected on those regions' threads instead.
+///
+/// With the trade store enabled, villagers in town whose chunks are not loaded contribute the
+/// trades they had when last stored, read and decoded on the worker thread.
+///
+/// In paged mode the bell instead opens a small index of the professions in town, and only the
+/// chosen page of at most `page-size` offers is built and sent. The index keeps the trades it was
+/// opened with, so its pages do not shift while it is open.
+final class TradingPost implements Listener {
+
+  /// Upper bound on snapshot age, to pick up villagers that have wandered into or out of town.
+  private static final long SNAPSHOT_MAX_AGE_NANOS = Duration.ofMinutes(1).toNanos();
+
+  private static final Map<Villager.Profession, Material> PROFESSION_ICONS =
+      Map.ofEntries(
+          Map.entry(Villager.Profession.ARMORER, Material.BLAST_FURNACE),
+          Map.entry(Villager.Profession.BUTCHER, Material.SMOKER),
+          Map.entry(Villager.Profession.CARTOGRAPHER, Material.CARTOGRAPHY_TABLE),
+          Map.entry(Villager.Profession.CLERIC, Material.BREWING_STAND),
+          Map.entry(Villager.Profession.FARMER, Material.COMPOSTER),
+          Map.entry(Villager.Profession.FISHERMAN, Material.BARREL),
+          Map.entry(Villager.Profession.FLETCHER, Material.FLETCHING_TABLE),
+          Map.entry(Villager.Profession.LEATHERWORKER, Material.CAULDRON),
+          Map.entry(Villager.Profession.LIBRARIAN, Material.LECTERN),
+          Map.entry(Villager.Profession.MASON, Material.STONECUTTER),
+          Map.entry(Villager.Profession.SHEPHERD, Material.LOOM),
+          Map.entry(Villager.Profession.TOOLSMITH, Material.SMITHING_TABLE),
+          Map.entry(Villager.Profession.WEAPONSMITH, Material.GRINDSTONE));
+  private static final int MAX_INDEX_SLOTS = 54;
+
+  private record Snapshot(CompletableFuture<List<MerchantRecipe>> offers, long builtNanos) {}
+
+  /// An index slot: either a single page of a profession's offers, or with a negative `page`, the
+  /// list of that profession's pages from page `-page - 1` on.
+  private record Entry(Villager.Profession profession, int page) {
+    static Entry pages(Villager.Profession profession, int first) {
+      return new Entry(profession, -first - 1);
+    }
+  }
+
+  /// A villager's profession and trades, read on the villager's thread. The recipes are copied
+  /// out of the server's live view of the villager's offers, which later ticks would change.
+  private record Trades(
+      UUID villager, Villager.Profession profession, List<MerchantRecipe> recipes) {
+    static Trades of(Villager villager) {
+      return new Trades(
+          villager.getUniqueId(), villager.getProfession(), List.copyOf(villager.getRecipes()));
+    }
+  }
+
+  private static final class Index implements InventoryHolder {
+    private final Location bell;
+    private final Map<Villager.Profession, List<Trades>> professions;
+    private final List<Entry> entries;
+    private Inventory inventory;
+
+    private Index(
+        Location bell, Map<Villager.Profession, List<Trades>> professions, List<Entry> entries) {
+      this.bell = bell;
+      this.professions = professions;
+      this.entries = entries;
+    }
+
+    @Override
+    public Inventory getInventory() {
+      return inventory;
+    }
+  }
+
+  private final TaskScheduler scheduler;
+  private final Executor workers;
+  private final Logger logger;
+  private final VillagerIndex villagerIndex;
+  private final Metrics metrics;
+  private final LoadGovernor loadGovernor;
+  private final Predicate<World> enabledIn;
+
+  /// Where trades of villagers in unloaded chunks come from, or `null` to leave them out.
+  private final TradeStore tradeStore;
+  private final OfferInterner offerInterner;
+  private final boolean paged;
+  private final int pageSize;
+  private final Map<Location, Snapshot> snapshots = new ConcurrentHashMap<>();
+
+  TradingPost(
+      TaskScheduler scheduler,
+      Executor workers,
+      Logger logger,
+      VillagerIndex villagerIndex,
+      Metrics metrics,
+      LoadGovernor loadGovernor,
+      Predicate<World> enabledIn,
+      TradeStore tradeStore,
+      ConfigurationSection config) {
+    this.scheduler = scheduler;
+    this.workers = workers;
+    this.logger = logger;
+    this.villagerIndex = villagerIndex;
+    this.metrics = metrics;
+    this.loadGovernor = loadGovernor;
+    this.enabledIn = enabledIn;
+    this.tradeStore = tradeStore;
+    this.offerInterner = config.getBoolean("deduplicate-offers") ? new OfferInterner() : null;
+    this.paged = config.getBoolean("paged");
+    this.pageSize = Math.max(1, config.getInt("page-size"));
+    // Snapshots are only kept per bell, so one built for a town of another size must not be
+    // reused.
+    loadGovernor.onLevelChange(
+        (from, to) -> {
+          if (from.townScale() != to.townScale()) invalidateAll();
+        });
+  }
+
+  private static MerchantRecipe getInfiniteRecipe(MerchantRecipe recipe) {
+    MerchantRecipe mr =
+        new MerchantRecipe(
+            recipe.getResult(),
+            /* uses= */ 0,
+            /* maxUses= */ Integer.MAX_VALUE,
+            /* experienceReward= */ false);
+    recipe.getIngredients().forEach(mr::addIngredient);
+    return mr;
+  }
+
+  private List<MerchantRecipe> getOffers(Stream<MerchantRecipe> recipes) {
+    if (offerInterner != null) return offerInterner.canonicalize(recipes);
+    return recipes.map(TradingPost::getInfiniteRecipe).toList();
+  }
+
+  /// The villagers in town, the town shrinking while the server is under load.
+  private List<Villager> getTownVillagers(Location location) {
+    double scale = loadGovernor.getLevel().townScale();
+    List<Villager> villagers =
+        villagerIndex.getNearbyVillagers(
+            location, Sane.TOWN_DIM_X * scale, Sane.TOWN_DIM_Y * scale, Sane.TOWN_DIM_Z * scale);
+    metrics.count(Metrics.Counter.VILLAGERS_SCANNED, villagers.size());
+    return villagers;
+  }
+
+  /// Read the trades of `villagers`, each on the thread that owns it, leaving out any removed
+  /// before then. Reading only copies the villager's list of recipes, so it is cheap enough to do
+  /// right away for the villagers the calling thread owns.
+  private CompletableFuture<List<Trades>> collectTrades(List<Villager> villagers) {
+    List<CompletableFuture<Trades>> reads = new ArrayList<>(villagers.size());
+    for (Villager villager : villagers) {
+      reads.add(
+          scheduler.supply(villager, () -> villager.isValid() ? Trades.of(villager) : null, null));
+    }
+    return TaskScheduler.allOf(reads);
+  }
+
+  private static List<MerchantRecipe> getRecipes(List<Trades> trades) {
+    List<MerchantRecipe> recipes = new ArrayList<>();
+    for (Trades villager : trades) recipes.addAll(villager.recipes());
+    return recipes;
+  }
+
+  /// Collect the recipes of every loaded villager in town. Must run on the thread that owns
+  /// `location`.
+  CompletableFuture<List<MerchantRecipe>> getTownRecipes(Location location) {
+    return collectTrades(getTownVillagers(location)).thenApply(TradingPost::getRecipes);
+  }
+
+  /// The villagers in town whose trades are only in the store, their chunks not being loaded.
+  private List<TradeStore.Entry> getStoredTownVillagers(Location location, List<Villager> loaded) {
+    if (tradeStore == null) return List.of();
+    Set<UUID> loadedIds = new HashSet<>();
+    for (Villager villager : loaded) loadedIds.add(villager.getUniqueId());
+    double scale = loadGovernor.getLevel().townScale();
+    return tradeStore.getUnloadedVillagers(
+        location,
+        Sane.TOWN_DIM_X * scale,
+        Sane.TOWN_DIM_Y * scale,
+        Sane.TOWN_DIM_Z * scale,
+        loadedIds);
+  }
+
+  /// Build the offers for the `collected` recipes of `villagers` loaded villagers at `location`,
+  /// plus those of the `stored` villagers, on a worker thread once collection is done.
+  private CompletableFuture<List<MerchantRecipe>> buildOffers(
+      Location location,
+      int villagers,
+      CompletableFuture<List<MerchantRecipe>> collected,
+      List<TradeStore.Entry> stored) {
+    return collected.thenApplyAsync(
+        recipes -> {
+          long start = System.nanoTime();
+          FlightEvents.TradingPostBuild event = new FlightEvents.TradingPostBuild();
+          event.begin();
+          List<MerchantRecipe> all = recipes;
+          if (!stored.isEmpty()) {
+            all = new ArrayList<>(recipes);
+            for (TradeStore.Entry entry : stored) all.addAll(tradeStore.read(entry));
+          }
+          List<MerchantRecipe> offers = getOffers(all.stream());
+          metrics.record(Metrics.Timer.TRADING_POST_BUILD, start);
+          metrics.count(Metrics.Counter.RECIPES_BUILT, all.size());
+          if (event.shouldCommit()) {
+            event.setLocation(location);
+            event.villagers = villagers;
+            event.storedVillagers = stored.size();
+            event.recipes = offers.size();
+            event.commit();
+          }
+          return offers;
+        },
+        workers);
+  }
+
+  /// Build the offers of every villager in town, loaded or stored, without going through the
+  /// snapshot. Must run on the thread that owns `location`.
+  CompletableFuture<List<MerchantRecipe>> buildTownOffers(Location location) {
+    List<Villager> villagers = getTownVillagers(location);
+    return buildOffers(
+        location,
+        villagers.size(),
+        collectTrades(villagers).thenApply(TradingPost::getRecipes),
+        getStoredTownVillagers(location, villagers));
+  }
+
+  /// The villagers in town with at least one trade, grouped by profession. Both professions and
+  /// villagers are in a stable order, so that page numbers mean the same thing from one open to
+  /// the next.
+  private static Map<Villager.Profession, List<Trades>> getTownProfessions(List<Trades> trades) {
+    Map<Villager.Profession, List<Trades>> professions =
+        new TreeMap<>(Comparator.comparing((Villager.Profession p) -> p.getKey().getKey()));
+    for (Trades villager : trades) {
+      if (villager.recipes().isEmpty()) continue;
+      professions.computeIfAbsent(villager.profession(), p -> new ArrayList<>()).add(villager);
+    }
+    for (List<Trades> villagers : professions.values())
+      villagers.sort(Comparator.comparing(Trades::villager));
+    return professions;
+  }
+
+  private int getPageCount(List<Trades> villagers) {
+    int recipeCount = 0;
+    for (Trades villager : villagers) recipeCount += villager.recipes().size();
+    return (recipeCount + pageSize - 1) / pageSize;
+  }
+
+  /// Collect the recipes on `page` of `villagers`.
+  private List<MerchantRecipe> getPageRecipes(List<Trades> villagers, int page) {
+    List<MerchantRecipe> recipes = new ArrayList<>(pageSize);
+    int skip = page * pageSize;
+    for (Trades villager : villagers) {
+      int recipeCount = villager.recipes().size();
+      if (skip >= recipeCount) {
+        skip -= recipeCount;
+        continue;
+      }
+      for (int i = skip; i < recipeCount && recipes.size() < pageSize; i++)
+        recipes.add(villager.recipes().get(i));
+      skip = 0;
+      if (recipes.size() == pageSize) break;
+    }
+    return recipes;
+  }
+
+  /// The offers for `bell`, shared with any build for it that is still in flight.
+  private CompletableFuture<List<MerchantRecipe>> getSnapshot(Location bell) {
+    long now = System.nanoTime();
+    Snapshot snapshot = snapshots.get(bell);
+    if (snapshot != null && now - snapshot.builtNanos() < SNAPSHOT_MAX_AGE_NANOS)
+      return snapshot.offers();
+    Snapshot built = new Snapshot(buildTownOffers(bell), now);
+    snapshots.put(bell, built);
+    built
+        .offers()
+        .exceptionally(
+            e -> {
+              snapshots.remove(bell, built);
+              return null;
+            });
+    return built.offers();
+  }
+
+  private static void openMerchant(Player player, Component title, List<MerchantRecipe> recipes) {
+    MerchantView merchantView = MenuType.MERCHANT.create(player, title);
+    merchantView.getMerchant().setRecipes(recipes);
+    player.openInventory(merchantView);
+  }
+
+  /// Open a merchant view of `offers` on the player's thread once they have been built.
+  private void openMerchantWhenBuilt(
+      Player player, Component title, CompletableFuture<List<MerchantRecipe>> offers) {
+    offers.whenComplete(
+        (recipes, e) -> {
+          if (e != null) {
+            logger.log(Level.SEVERE, "Failed to build Trading Post offers", e);
+            return;
+          }
+          scheduler.runAt(
+              player,
+              () -> {
+                if (player.isOnline()) openMerchant(player, title, recipes);
+              });
+        });
+  }
+
+  private static ItemStack getIcon(Material material, int amount, String name) {
+    ItemStack icon = new ItemStack(material, amount);
+    icon.editMeta(meta -> meta.displayName(Component.text(name)));
+    return icon;
+  }
+
+  private static String getProfessionName(Villager.Profession profession) {
+    return Sane.cleanKey(profession.getKey());
+  }
+
+  private void openIndex(
+      Player player,
+      Location bell,
+      Map<Villager.Profession, List<Trades>> professions,
+      List<Entry> entries,
+      List<ItemStack> icons) {
+    Index index = new Index(bell, professions, entries);
+    int size = Math.max(9, (entries.size() + 8) / 9 * 9);
+    index.inventory = Bukkit.createInventory(index, size, Component.text("Trading Post"));
+    for (int i = 0; i < icons.size(); i++) index.inventory.setItem(i, icons.get(i));
+    player.openInventory(index.inventory);
+  }
+
+  private void openProfessionIndex(
+      Player player, Location bell, Map<Villager.Profession, List<Trades>> professions) {
+    List<Entry> entries = new ArrayList<>();
+    List<ItemStack> icons = new ArrayList<>();
+    for (var profession : professions.entrySet()) {
+      if (entries.size() == MAX_INDEX_SLOTS) break;
+      int pageCount = getPageCount(profession.getValue());
+      entries.add(
+          pageCount == 1 ? new Entry(profession.getKey(), 0) : Entry.pages(profession.getKey(), 0));
+      icons.add(
+          getIcon(
+              PROFESSION_ICONS.getOrDefault(profession.getKey(), Material.EMERALD),
+              1,
+              "%s (%d villagers)"
+                  .formatted(
+                      getProfessionName(profession.getKey()), profession.getValue().size())));
+    }
+    openIndex(player, bell, professions, entries, icons);
+  }
+
+  /// Open the list of `profession`'s pages from `first` on. If they do not all fit, the last slot
+  /// leads on to the rest.
+  private void openPageIndex(
+      Player player, Index index, Villager.Profession profession, int first) {
+    List<Trades> villagers = index.professions.getOrDefault(profession, List.of());
+    int pageCount = getPageCount(villagers);
+    boolean more = pageCount - first > MAX_INDEX_SLOTS;
+    int end = more ? first + MAX_INDEX_SLOTS - 1 : pageCount;
+    List<Entry> entries = new ArrayList<>();
+    List<ItemStack> icons = new ArrayList<>();
+    for (int page = first; page < end; page++) {
+      entries.add(new Entry(profession, page));
+      icons.add(
+          getIcon(
+              Material.PAPER,
+              Math.min(page + 1, Material.PAPER.getMaxStackSize()),
+              "%s (%d/%d)".formatted(getProfessionName(profession), page + 1, pageCount)));
+    }
+    if (more) {
+      entries.add(Entry.pages(profession, end));
+      icons.add(
+          getIcon(
+              Material.ARROW,
+              1,
+              "%s: more pages from %d".formatted(getProfessionName(profession), end + 1)));
+    }
+    openIndex(player, index.bell, index.professions, entries, icons);
+  }
+
+  private void openPage(Player player, Index index, Villager.Profession profession, int page) {
+    List<Trades> villagers = index.professions.getOrDefault(profession, List.of());
+    int pageCount = getPageCount(villagers);
+    openMerchantWhenBuilt(
+        player,
+        Component.text(
+            "Trading Post: %s (%d/%d)"
+                .formatted(getProfessionName(profession), page + 1, pageCount)),
+        buildOffers(
+            index.bell,
+            villagers.size(),
+            CompletableFuture.completedFuture(getPageRecipes(villagers, page)),
+            List.of()));
+  }
+
+  /// Open the Trading Post for the bell at `bell` on the next tick.
+  void open(Player player, Location bell) {
+    if (paged) {
+      scheduler.runAt(
+          bell,
+          () ->
+              collectTrades(getTownVillagers(bell))
+                  .thenAccept(
+                      trades ->
+                          scheduler.runAt(
+                              player,
+                              () -> {
+                                if (player.isOnline())
+                                  openProfessionIndex(player, bell, getTownProfessions(trades));
+                              })));
+      return;
+    }
+    scheduler.runAt(
+        bell,
+        () -> openMerchantWhenBuilt(player, Component.text("Trading Post"), getSnapshot(bell)));
+  }
+
+  /// Open the offers of `villagers` that pass `filter`, wherever in the world the villagers are.
+  /// Those not owned by the player's thread, or not loaded, are read from the trade store.
+  void openMatches(
+      Player player,
+      Component title,
+      Collection<UUID> villagers,
+      Predicate<MerchantRecipe> filter) {
+    List<MerchantRecipe> recipes = new ArrayList<>();
+    List<TradeStore.Entry> stored = new ArrayList<>();
+    int loaded = 0;
+    for (UUID id : villagers) {
+      if (Bukkit.getEntity(id) instanceof Villager villager
+          && Bukkit.isOwnedByCurrentRegion(villager)) {
+        recipes.addAll(villager.getRecipes());
+        loaded++;
+      } else if (tradeStore != null) {
+        TradeStore.Entry entry = tradeStore.getEntry(id);
+        if (entry != null) stored.add(entry);
+      }
+    }
+    openMerchantWhenBuilt(
+        player,
+        title,
+        buildOffers(
+                player.getLocation(), loaded, CompletableFuture.completedFuture(recipes), stored)
+            .thenApply(offers -> offers.stream().filter(filter).toList()));
+  }
+
+  private static boolean inTown(Location bell, Location location) {
+    // Pad by a block to account for villager bounding boxes poking into the town box.
+    return bell.getWorld() == location.getWorld()
+        && Math.abs(bell.getX() - location.getX()) <= Sane.TOWN_DIM_X + 1
+        && Math.abs(bell.getY() - location.getY()) <= Sane.TOWN_DIM_Y + 1
+        && Math.abs(bell.getZ() - location.getZ()) <= Sane.TOWN_DIM_Z + 1;
+  }
+
+  /// Drop the snapshot of every bell whose town `villager` is in.
+  void invalidate(Villager villager) {
+    if (snapshots.isEmpty()) return;
+    Location location = villager.getLocation();
+    snapshots.keySet().removeIf(bell -> inTown(bell, location));
+  }
+
+  /// Drop every snapshot, for when invalidating events may have been missed.
+  void invalidateAll() {
+    snapshots.clear();
+  }
+
+  /// Drop the snapshots too old to be served again, so bells nobody rings any more do not keep
+  /// their offers.
+  void forgetExpiredSnapshots() {
+    long now = System.nanoTime();
+    snapshots.values().removeIf(snapshot -> now - snapshot.builtNanos() >= SNAPSHOT_MAX_AGE_NANOS);
+  }
+
+  /// The listener keeping index icons from being taken, which has to stay registered while the
+  /// Trading Post is turned off in case an index is still open. It only pages through the index
+  /// while the Trading Post is on.
+  Listener getIndexGuard() {
+    return new Listener() {
+      @EventHandler
+      public void onInventoryClick(InventoryClickEvent event) {
+        if (!(event.getInventory().getHolder(false) instanceof Index index)) return;
+        event.setCancelled(true);
+        int slot = event.getRawSlot();
+        if (slot < 0 || slot >= index.entries.size()) return;
+        if (!(event.getWhoClicked() instanceof Player player)) return;
+        if (!enabledIn.test(index.bell.getWorld())) return;
+        Entry entry = index.entries.get(slot);
+        scheduler.runAt(
+            player,
+            () -> {
+              if (entry.page() < 0)
+                openPageIndex(player, index, entry.profession(), -entry.page() - 1);
+              else openPage(player, index, entry.profession(), entry.page());
+            });
+      }
+
+      @EventHandler
+      public void onInventoryDrag(InventoryDragEvent event) {
+        if (event.getInventory().getHolder(false) instanceof Index) event.setCancelled(true);
+      }
+    };
+  }
+
+  // A click cancelled outright, rather than only denied use of the block as at spawn, has already
+  // been dealt with, such as by a bribe.
+  @EventHandler
+  public void onPlayerInteract(PlayerInteractEvent event) {
+    if (event.getAction() != Action.RIGHT_CLICK_BLOCK
+        || event.useItemInHand() == Event.Result.DENY) return;
+    Player player = event.getPlayer();
+    Block block = event.getClickedBlock();
+    if (!player.isSneaking() || block == null || block.getType() != Material.BELL) return;
+    if (!enabledIn.test(block.getWorld())) return;
+    long start = System.nanoTime();
+    try {
+      if (loadGovernor.tryClick(player)) open(player, block.getLocation());
+      event.setCancelled(true);
+    } finally {
+      metrics.record(Metrics.Timer.TRADING_POST_CLICK, start);
+    }
+  }
+
+  @EventHandler(ignoreCancelled = true)
+  public void onVillagerCareerChange(VillagerCareerChangeEvent event) {
+    invalidate(event.getEntity());
+  }
+
+  @EventHandler(ignoreCancelled = true)
+  public void onVillagerAcquireTrade(VillagerAcquireTradeEvent event) {
+    if (event.getEntity() instanceof Villager villager) invalidate(villager);
+  }
+
+  @EventHandler
+  public void onEntityAddToWorld(EntityAddToWorldEvent event) {
+    if (event.getEntity() instanceof Villager villager) invalidate(villager);
+  }
+
+  @EventHandler
+  public void onEntityRemoveFromWorld(EntityRemoveFromWorldEvent event) {
+    if (event.getEntity() instanceof Villager villager) invalidate(villager);
+  }
+
+  @EventHandler
+  public void onWorldUnload(WorldUnloadEvent event) {
+    World world = event.getWorld();
+    snapshots.keySet().removeIf(bell -> bell.getWorld() == world);
+  }
+}
@@ -0,0 +1,172 @@
+package com.scottlinder.sane;
+
+import com.destroystokyo.paper.event.entity.EntityAddToWorldEvent;
+import com.destroystokyo.paper.event.entity.EntityRemoveFromWorldEvent;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.Player;
+import org.bukkit.entity.Villager;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.Listener;
+import org.bukkit.event.world.EntitiesLoadEvent;
+import org.bukkit.event.world.EntitiesUnloadEvent;
+import org.bukkit.event.world.WorldUnloadEvent;
+import org.bukkit.util.BoundingBox;
+
+/// Per-world index of loaded villagers, bucketed by chunk, so that town-sized queries only visit
+/// villagers instead of every entity in the box.
+///
+/// Villagers wander, so a villager is filed under the chunk it was last seen in. Queries widen
+/// their chunk range by one chunk and then test each villager's actual bounding box, and
+/// {@link #rebucket(TaskScheduler)} periodically refiles villagers that have strayed further
+/// than that.
+///
+/// The tables are concurrent, since on Folia they are updated from every region's thread.
+final class VillagerIndex implements Listener {
+
+  /// Where a villager is currently filed, so it can be removed without knowing its old chunk.
+  private record Slot(Map<Long, Set<Villager>> chunks, long chunkKey) {}
+
+  private final Map<UUID, Map<Long, Set<Villager>>> worlds = new ConcurrentHashMap<>();
+  private final Map<Villager, Slot> slots = new ConcurrentHashMap<>();
+
+  static long chunkKey(int chunkX, int chunkZ) {
+    return ((long) chunkZ << 32) | (chunkX & 0xFFFFFFFFL);
+  }
+
+  private static long chunkKey(Location location) {
+    return chunkKey(location.getBlockX() >> 4, location.getBlockZ() >> 4);
+  }
+
+  void add(Villager villager) {
+    Map<Long, Set<Villager>> chunks =
+        worlds.computeIfAbsent(villager.getWorld().getUID(), k -> new ConcurrentHashMap<>());
+    long chunkKey = chunkKey(villager.getLocation());
+    Slot slot = slots.get(villager);
+    if (slot != null && slot.chunks() == chunks && slot.chunkKey() == chunkKey) return;
+    remove(villager);
+    chunks.computeIfAbsent(chunkKey, k -> ConcurrentHashMap.newKeySet()).add(villager);
+    slots.put(villager, new Slot(chunks, chunkKey));
+  }
+
+  void remove(Villager villager) {
+    Slot slot = slots.remove(villager);
+    if (slot == null) return;
+    Set<Villager> bucket = slot.chunks().get(slot.chunkKey());
+    if (bucket == null) return;
+    bucket.remove(villager);
+    if (bucket.isEmpty()) slot.chunks().remove(slot.chunkKey());
+  }
+
+  void addAll(World world) {
+    for (Villager villager : world.getEntitiesByClass(Villager.class)) add(villager);
+  }
+
+  /// Every villager in the index.
+  Collection<Villager> getVillagers() {
+    return slots.keySet();
+  }
+
+  /// Refile every villager under the chunk it is in now, dropping any that are no longer valid.
+  /// Each villager is looked at on its own thread.
+  void rebucket(TaskScheduler scheduler) {
+    for (Villager villager : new ArrayList<>(slots.keySet())) {
+      scheduler.execute(
+          villager,
+          () -> {
+            if (villager.isValid()) add(villager);
+            else remove(villager);
+          },
+          () -> remove(villager));
+    }
+  }
+
+  /// Equivalent to `getNearbyEntities(center, x, y, z)` filtered down to villagers.
+  List<Villager> getNearbyVillagers(Location center, double x, double y, double z) {
+    List<Villager> villagers = new ArrayList<>();
+    Map<Long, Set<Villager>> chunks = worlds.get(center.getWorld().getUID());
+    if (chunks == null) return villagers;
+    BoundingBox box = BoundingBox.of(center, x, y, z);
+    int minX = ((int) Math.floor(box.getMinX()) >> 4) - 1;
+    int minZ = ((int) Math.floor(box.getMinZ()) >> 4) - 1;
+    int maxX = ((int) Math.floor(box.getMaxX()) >> 4) + 1;
+    int maxZ = ((int) Math.floor(box.getMaxZ()) >> 4) + 1;
+    long area = (long) (maxX - minX + 1) * (maxZ - minZ + 1);
+    if (area > chunks.size()) {
+      for (var entry : chunks.entrySet()) {
+        int chunkX = (int) (long) entry.getKey();
+        int chunkZ = (int) (entry.getKey() >> 32);
+        if (chunkX < minX || chunkX > maxX || chunkZ < minZ || chunkZ > maxZ) continue;
+        collect(entry.getValue(), box, villagers);
+      }
+    } else {
+      for (int chunkX = minX; chunkX <= maxX; chunkX++) {
+        for (int chunkZ = minZ; chunkZ <= maxZ; chunkZ++) {
+          Set<Villager> bucket = chunks.get(chunkKey(chunkX, chunkZ));
+          if (bucket != null) collect(bucket, box, villagers);
+        }
+      }
+    }
+    return villagers;
+  }
+
+  private static void collect(Set<Villager> bucket, BoundingBox box, List<Villager> villagers) {
+    for (Villager villager : bucket) {
+      if (villager.isValid() && box.overlaps(villager.getBoundingBox())) villagers.add(villager);
+    }
+  }
+
+  /// Equivalent to `center.getNearbyPlayers(x, y, z)`. Players move too quickly to keep chunk
+  /// buckets current, so this walks the world's own player list, which is already small.
+  List<Player> getNearbyPlayers(Location center, double x, double y, double z) {
+    return getNearbyPlayers(center.getWorld(), BoundingBox.of(center, x, y, z));
+  }
+
+  /// The players in `world` whose bounding boxes overlap `box`.
+  List<Player> getNearbyPlayers(World world, BoundingBox box) {
+    List<Player> players = new ArrayList<>();
+    for (Player player : world.getPlayers()) {
+      if (box.overlaps(player.getBoundingBox())) players.add(player);
+    }
+    return players;
+  }
+
+  @EventHandler
+  public void onEntityAddToWorld(EntityAddToWorldEvent event) {
+    if (event.getEntity() instanceof Villager villager) add(villager);
+  }
+
+  @EventHandler
+  public void onEntityRemoveFromWorld(EntityRemoveFromWorldEvent event) {
+    if (event.getEntity() instanceof Villager villager) remove(villager);
+  }
+
+  @EventHandler
+  public void onEntitiesLoad(EntitiesLoadEvent event) {
+    for (Entity entity : event.getEntities()) {
+      if (entity instanceof Villager villager) add(villager);
+    }
+  }
+
+  @EventHandler
+  public void onEntitiesUnload(EntitiesUnloadEvent event) {
+    for (Entity entity : event.getEntities()) {
+      if (entity instanceof Villager villager) remove(villager);
+    }
+  }
+
+  @EventHandler
+  public void onWorldUnload(WorldUnloadEvent event) {
+    Map<Long, Set<Villager>> chunks = worlds.remove(event.getWorld().getUID());
+    if (chunks == null) return;
+    slots.values().removeIf(slot -> slot.chunks() == chunks);
+  }
+}
@@ -0,0 +1,186 @@
+package com.scottlinder.sane;
+
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.data.BlockData;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.entity.Player;
+import org.bukkit.entity.Villager;
+import org.bukkit.entity.memory.MemoryKey;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.Listener;
+import org.bukkit.event.block.Action;
+import org.bukkit.event.player.PlayerInteractEvent;
+
+/// Sneak-clicking a workstation makes the villagers using it reroll their trades, as long as they
+/// have never been traded with.
+///
+/// In `toggle` mode this is done the vanilla way, by briefly replacing the block with air so the
+/// villagers lose their job. In `direct` mode the block is left alone: the villagers bound to it
+/// through their job site memory have their profession cleared and restored in place, which
+/// makes the server regenerate their trades without any block, light or POI updates.
+///
+/// Either way, repeat clicks on the same block within `dedupe-ticks` are ignored.
+final class WorkstationReset implements Listener {
+
+  /// How far from its job site a villager can be, matching vanilla's POI search range.
+  private static final int JOB_SITE_RANGE = 48;
+
+  private static final Set<Material> WORKSTATIONS =
+      EnumSet.of(
+          Material.BARREL,
+          Material.BLAST_FURNACE,
+          Material.BREWING_STAND,
+          Material.CARTOGRAPHY_TABLE,
+          Material.CAULDRON,
+          Material.COMPOSTER,
+          Material.FLETCHING_TABLE,
+          Material.GRINDSTONE,
+          Material.LECTERN,
+          Material.LOOM,
+          Material.SMITHING_TABLE,
+          Material.SMOKER,
+          Material.STONECUTTER);
+
+  private final TaskScheduler scheduler;
+  private final VillagerIndex villagerIndex;
+  private final CareerAnnouncer careerAnnouncer;
+  private final Metrics metrics;
+  private final LoadGovernor loadGovernor;
+  private final Predicate<World> enabledIn;
+  private final BlockData airData = Material.AIR.createBlockData();
+  private final boolean direct;
+  private final long dedupeTicks;
+  private final Set<Location> recentlyReset = ConcurrentHashMap.newKeySet();
+
+  WorkstationReset(
+      TaskScheduler scheduler,
+      VillagerIndex villagerIndex,
+      CareerAnnouncer careerAnnouncer,
+      Metrics metrics,
+      LoadGovernor loadGovernor,
+      Predicate<World> enabledIn,
+      ConfigurationSection config) {
+    this.scheduler = scheduler;
+    this.villagerIndex = villagerIndex;
+    this.careerAnnouncer = careerAnnouncer;
+    this.metrics = metrics;
+    this.loadGovernor = loadGovernor;
+    this.enabledIn = enabledIn;
+    this.direct = "direct".equalsIgnoreCase(config.getString("mode"));
+    this.dedupeTicks = Math.max(1, config.getLong("dedupe-ticks"));
+  }
+
+  @EventHandler
+  public void onPlayerInteract(PlayerInteractEvent event) {
+    if (event.getAction() != Action.RIGHT_CLICK_BLOCK) return;
+    Player player = event.getPlayer();
+    Block block = event.getClickedBlock();
+    if (!player.isSneaking() || block == null || !WORKSTATIONS.contains(block.getType())) return;
+    if (!enabledIn.test(block.getWorld())) return;
+    long start = System.nanoTime();
+    try {
+      if (loadGovernor.tryClick(player)) reset(block);
+      event.setCancelled(true);
+    } finally {
+      metrics.record(Metrics.Timer.WORKSTATION_CLICK, start);
+    }
+  }
+
+  void reset(Block block) {
+    Location location = block.getLocation();
+    if (!recentlyReset.add(location)) return;
+    scheduler.runAtLater(location, () -> recentlyReset.remove(location), dedupeTicks);
+    if (direct) resetDirect(location);
+    else resetToggle(block);
+  }
+
+  private void resetToggle(Block block) {
+    BlockData origBlockData = block.getBlockData();
+    Location location = block.getLocation();
+    scheduler.runAt(
+        location,
+        () -> {
+          long start = System.nanoTime();
+          FlightEvents.WorkstationReset event = new FlightEvents.WorkstationReset();
+          event.begin();
+          block.setBlockData(airData);
+          scheduler.runAtLater(
+              location,
+              () -> {
+                // TODO: turn to item if block is no
+                // longer air?
+                block.setBlockData(origBlockData);
+              },
+              2L);
+          metrics.record(Metrics.Timer.WORKSTATION_RESET, start);
+          if (event.shouldCommit()) {
+            event.setLocation(location);
+            event.workstation = origBlockData.getMaterial().getKey().getKey();
+            event.commit();
+          }
+        });
+  }
+
+  private static boolean isJobSite(Location jobSite, Location location) {
+    return jobSite != null
+        && jobSite.getWorld() == location.getWorld()
+        && jobSite.getBlockX() == location.getBlockX()
+        && jobSite.getBlockY() == location.getBlockY()
+        && jobSite.getBlockZ() == location.getBlockZ();
+  }
+
+  /// Reset `villager` if it works at `location` and has never traded. Must run on the villager's
+  /// thread.
+  private boolean resetVillager(Villager villager, Location location) {
+    if (!isJobSite(villager.getMemory(MemoryKey.JOB_SITE), location)) return false;
+    // The same villagers vanilla would let go of when their job site disappears.
+    if (villager.getVillagerLevel() != 1 || villager.getVillagerExperience() != 0) return false;
+    Villager.Profession profession = villager.getProfession();
+    villager.setProfession(Villager.Profession.NONE);
+    villager.setProfession(profession);
+    // Changing profession drops the offers; fetching them generates the new ones now.
+    villager.getRecipeCount();
+    careerAnnouncer.announce(villager);
+    return true;
+  }
+
+  private void resetDirect(Location location) {
+    scheduler.runAt(
+        location,
+        () -> {
+          long start = System.nanoTime();
+          FlightEvents.WorkstationReset event = new FlightEvents.WorkstationReset();
+          event.begin();
+          int reset = 0;
+          for (Villager villager :
+              villagerIndex.getNearbyVillagers(
+                  location.toCenterLocation(), JOB_SITE_RANGE, JOB_SITE_RANGE, JOB_SITE_RANGE)) {
+            // On Folia a villager across a region border can only be reset on its own thread.
+            if (!scheduler.owns(villager)) {
+              scheduler.runAt(
+                  villager,
+                  () -> {
+                    if (villager.isValid()) resetVillager(villager, location);
+                  });
+            } else if (resetVillager(villager, location)) {
+              reset++;
+            }
+          }
+          metrics.record(Metrics.Timer.WORKSTATION_RESET, start);
+          if (event.shouldCommit()) {
+            event.setLocation(location);
+            event.workstation = location.getBlock().getType().getKey().getKey();
+            event.direct = true;
+            event.villagers = reset;
+            event.commit();
+          }
+        });
+  }
+}
@@ -0,0 +1,142 @@
+package com.scottlinder.sane;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Logger;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class TradeStoreTest {
+
+  private static final UUID WORLD = UUID.randomUUID();
+
+  @TempDir Path directory;
+
+  private TradeStore open() throws IOException {
+    TradeStore store = new TradeStore(directory, null, Logger.getAnonymousLogger());
+    store.open();
+    return store;
+  }
+
+  private static void store(TradeStore store, UUID villager, int x, byte[] trades) {
+    store.store(villager, WORLD, x, 64, 0, () -> trades);
+  }
+
+  private static byte[] readTrades(TradeStore store, UUID villager) {
+    TradeStore.Entry entry = store.getEntry(villager);
+    return entry == null ? null : store.readTrades(entry);
+  }
+
+  private static byte[] payload(int size, int seed) {
+    byte[] payload = new byte[size];
+    for (int i = 0; i < size; i++) payload[i] = (byte) (i * 31 + seed);
+    return payload;
+  }
+
+  @Test
+  void keepsTradesAcrossRestarts() throws IOException {
+    UUID first = UUID.randomUUID();
+    UUID second = UUID.randomUUID();
+    TradeStore store = open();
+    store(store, first, 1, payload(100, 1));
+    store(store, second, 2, payload(200, 2));
+    store(store, first, 3, payload(50, 3));
+    store.close(List.of());
+
+    store = open();
+    assertEquals(2, store.getEntries().size());
+    assertArrayEquals(payload(50, 3), readTrades(store, first));
+    assertEquals(3, store.getEntry(first).x());
+    assertArrayEquals(payload(200, 2), readTrades(store, second));
+    store.close(List.of());
+  }
+
+  @Test
+  void forgetsVillagersThatAreGone() throws IOException {
+    UUID villager = UUID.randomUUID();
+    TradeStore store = open();
+    store(store, villager, 0, payload(10, 0));
+    store(store, villager, 0, null);
+    store.flush();
+    assertNull(store.getEntry(villager));
+    store.close(List.of());
+
+    store = open();
+    assertTrue(store.getEntries().isEmpty());
+    store.close(List.of());
+  }
+
+  @Test
+  void dropsATornRecordAndKeepsWriting() throws IOException {
+    UUID kept = UUID.randomUUID();
+    UUID later = UUID.randomUUID();
+    TradeStore store = open();
+    store(store, kept, 0, payload(100, 1));
+    store.close(List.of());
+    Path file = directory.resolve("0.bin");
+    long size = Files.size(file);
+    // The start of a record whose write was cut short.
+    Files.write(file, new byte[] {0, 0, 1, 0, 7, 7, 7}, StandardOpenOption.APPEND);
+
+    store = open();
+    assertEquals(size, Files.size(file));
+    assertArrayEquals(payload(100, 1), readTrades(store, kept));
+    store(store, later, 0, payload(20, 2));
+    store.close(List.of());
+
+    store = open();
+    assertArrayEquals(payload(100, 1), readTrades(store, kept));
+    assertArrayEquals(payload(20, 2), readTrades(store, later));
+    store.close(List.of());
+  }
+
+  @Test
+  void skipsUnchangedTrades() throws IOException {
+    UUID villager = UUID.randomUUID();
+    TradeStore store = open();
+    store(store, villager, 0, payload(100, 1));
+    store.flush();
+    long size = Files.size(directory.resolve("0.bin"));
+    // Moved, but within the same chunk.
+    store(store, villager, 5, payload(100, 1));
+    store.flush();
+    assertEquals(size, Files.size(directory.resolve("0.bin")));
+    store(store, villager, 5, payload(100, 2));
+    store.flush();
+    assertTrue(Files.size(directory.resolve("0.bin")) > size);
+    store.close(List.of());
+  }
+
+  @Test
+  void compactsWhileRunning() throws IOException {
+    UUID villager = UUID.randomUUID();
+    UUID other = UUID.randomUUID();
+    TradeStore store = open();
+    store(store, other, 100, payload(10, 0));
+    for (int i = 0; i < 40; i++) store(store, villager, 0, payload(64 * 1024, i));
+    store.flush();
+    assertFalse(Files.exists(directory.resolve("0.bin")));
+    try (var files = Files.list(directory)) {
+      assertEquals(1, files.count());
+    }
+    assertArrayEquals(payload(64 * 1024, 39), readTrades(store, villager));
+    assertArrayEquals(payload(10, 0), readTrades(store, other));
+    store(store, villager, 0, payload(10, 40));
+    store.close(List.of());
+
+    store = open();
+    assertArrayEquals(payload(10, 40), readTrades(store, villager));
+    assertArrayEquals(payload(10, 0), readTrades(store, other));
+    store.close(List.of());
+  }
+}